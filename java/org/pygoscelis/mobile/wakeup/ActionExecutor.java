@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pygoscelis.mobile.wakeup;
+
+import java.io.PrintWriter;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Runs gesture actions on a dedicated thread, so that slow IPCs like startActivity do not
+ * delay dispatch of the next gesture
+ *
+ * Wake lock of an action is acquired when it is queued and released once it ran or was
+ * discarded. Queued actions are coalesced as the action asks for: a toggle cancels a queued
+ * toggle of the same kind, a replacing action supersedes its queued instance. Once the bounded
+ * queue is full, the drop policy decides whether the oldest queued or the new action is dropped.
+ */
+class ActionExecutor {
+    private static final String TAG = "ActionExecutor";
+    private static final boolean DEBUG = false;
+
+    /** Full queue drops its oldest action */
+    static final int DROP_OLDEST = 0;
+    /** Full queue drops the new action */
+    static final int DROP_NEWEST = 1;
+
+    private final Context mContext;
+    private final WakeLockPool mWakeLockPool;
+    private final int mDropPolicy;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // queued actions, guarded by this
+    private final WakeGesture[] mGestures;
+    private final GestureAction[] mActions;
+    // hold taken for each queued action
+    private final int[] mPolicies;
+    private final long[] mTimeouts;
+    private final long[] mAcquireTimes;
+    // latency stage timestamps of each queued action, on elapsed realtime clock in nanoseconds
+    private final long[] mStartNanos;
+    private final long[] mDispatchNanos;
+    private int mHead;
+    private int mCount;
+    private boolean mDrainScheduled;
+    private boolean mQuit;
+
+    private long mExecutedCount;
+    private long mCoalescedCount;
+    private long mDroppedCount;
+
+    /**
+     * @param capacity maximum number of queued actions
+     * @param dropPolicy DROP_OLDEST or DROP_NEWEST
+     */
+    ActionExecutor(Context context, WakeLockPool wakeLockPool, int capacity, int dropPolicy) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive");
+        if (dropPolicy != DROP_OLDEST && dropPolicy != DROP_NEWEST)
+            throw new IllegalArgumentException("Unknown drop policy: " + dropPolicy);
+
+        mContext = context;
+        mWakeLockPool = wakeLockPool;
+        mDropPolicy = dropPolicy;
+        mGestures = new WakeGesture[capacity];
+        mActions = new GestureAction[capacity];
+        mPolicies = new int[capacity];
+        mTimeouts = new long[capacity];
+        mAcquireTimes = new long[capacity];
+        mStartNanos = new long[capacity];
+        mDispatchNanos = new long[capacity];
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_FOREGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Acquires wake lock of the action and queues it. Does nothing once executor quit.
+     * @param startNanos elapsed realtime in nanoseconds when kernel reported the gesture
+     */
+    void execute(WakeGesture gesture, GestureAction action, long startNanos) {
+        final long dispatchNanos = SystemClock.elapsedRealtimeNanos();
+        final int policy = action.getWakeLockPolicy();
+        final long timeoutMs = action.getWakeLockTimeoutMs();
+
+        synchronized (this) {
+            // looper is gone, the action would never run while its wake lock lit the screen
+            if (mQuit) return;
+            final long acquireTime = mWakeLockPool.acquire(policy, timeoutMs);
+
+            final int coalescing = action.getCoalescing();
+            if (coalescing != GestureAction.COALESCE_NONE) {
+                final int index = indexOfQueued(action.getCoalesceKey());
+                if (index >= 0) {
+                    mCoalescedCount++;
+                    discard(index);
+                    if (coalescing == GestureAction.COALESCE_TOGGLE) {
+                        // both toggles cancel out
+                        discard(gesture, policy, timeoutMs, acquireTime);
+                        return;
+                    }
+                }
+            }
+
+            if (mCount == mActions.length) {
+                mDroppedCount++;
+                if (mDropPolicy == DROP_NEWEST) {
+                    discard(gesture, policy, timeoutMs, acquireTime);
+                    return;
+                }
+                discard(0);
+            }
+
+            final int tail = (mHead + mCount) % mActions.length;
+            mGestures[tail] = gesture;
+            mActions[tail] = action;
+            mPolicies[tail] = policy;
+            mTimeouts[tail] = timeoutMs;
+            mAcquireTimes[tail] = acquireTime;
+            mStartNanos[tail] = startNanos;
+            mDispatchNanos[tail] = dispatchNanos;
+            mCount++;
+            if (!mDrainScheduled) {
+                mDrainScheduled = true;
+                mHandler.post(mDrainRunnable);
+            }
+        }
+    }
+
+    /**
+     * Discards queued actions and stops the thread
+     */
+    void quit() {
+        synchronized (this) {
+            mQuit = true;
+            while (mCount > 0) {
+                discard(0);
+            }
+        }
+        mThread.quitSafely();
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Actions: executed=" + mExecutedCount + " coalesced=" + mCoalescedCount +
+                " dropped=" + mDroppedCount + " queued=" + mCount);
+    }
+
+    /**
+     * @return position of queued action with given coalesce key relative to head, -1 if none
+     */
+    private int indexOfQueued(Object coalesceKey) {
+        for (int i = 0; i < mCount; i++) {
+            final GestureAction queued = mActions[(mHead + i) % mActions.length];
+            if (queued.getCoalesceKey().equals(coalesceKey)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Removes queued action at given position relative to head and releases its wake lock
+     */
+    private void discard(int index) {
+        final int length = mActions.length;
+        final int slot = (mHead + index) % length;
+        discard(mGestures[slot], mPolicies[slot], mTimeouts[slot], mAcquireTimes[slot]);
+
+        for (int i = index; i < mCount - 1; i++) {
+            final int to = (mHead + i) % length;
+            final int from = (to + 1) % length;
+            mGestures[to] = mGestures[from];
+            mActions[to] = mActions[from];
+            mPolicies[to] = mPolicies[from];
+            mTimeouts[to] = mTimeouts[from];
+            mAcquireTimes[to] = mAcquireTimes[from];
+            mStartNanos[to] = mStartNanos[from];
+            mDispatchNanos[to] = mDispatchNanos[from];
+        }
+        final int last = (mHead + mCount - 1) % length;
+        mGestures[last] = null;
+        mActions[last] = null;
+        mCount--;
+    }
+
+    /**
+     * Releases exactly the hold taken when action was queued.
+     * Discarded action never ran, so no latency is recorded for it.
+     */
+    private void discard(WakeGesture gesture, int policy, long timeoutMs, long acquireTime) {
+        if (DEBUG) Log.d(TAG, "Discarding action of " + gesture);
+        mWakeLockPool.release(gesture, policy, timeoutMs, acquireTime);
+    }
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final GestureLatencyTracker latencyTracker = GestureLatencyTracker.getInstance();
+            while (true) {
+                final WakeGesture gesture;
+                final GestureAction action;
+                final int policy;
+                final long timeoutMs;
+                final long acquireTime;
+                final long startNanos;
+                final long dispatchNanos;
+                synchronized (ActionExecutor.this) {
+                    if (mCount == 0) {
+                        mDrainScheduled = false;
+                        return;
+                    }
+                    gesture = mGestures[mHead];
+                    action = mActions[mHead];
+                    policy = mPolicies[mHead];
+                    timeoutMs = mTimeouts[mHead];
+                    acquireTime = mAcquireTimes[mHead];
+                    startNanos = mStartNanos[mHead];
+                    dispatchNanos = mDispatchNanos[mHead];
+                    mGestures[mHead] = null;
+                    mActions[mHead] = null;
+                    mHead = (mHead + 1) % mActions.length;
+                    mCount--;
+                    mExecutedCount++;
+                }
+
+                final long actionNanos = latencyTracker.onActionStart(gesture, dispatchNanos);
+                try {
+                    action.execute(mContext);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Action of " + gesture + " failed", e);
+                } finally {
+                    mWakeLockPool.release(gesture, policy, timeoutMs, acquireTime);
+                    latencyTracker.onWakeLockReleased(gesture, startNanos, actionNanos);
+                }
+            }
+        }
+    };
+}
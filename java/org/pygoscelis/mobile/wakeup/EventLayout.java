@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pygoscelis.mobile.wakeup;
+
+/**
+ * Field offsets of struct input_event. Kernel hands out events using the ABI of
+ * the reading process: timeval fields are 32 bits wide for 32-bit processes
+ * (16 byte events) and 64 bits wide for 64-bit processes (24 byte events).
+ * Only the low 32 bits of timeval fields are read, which is the same little-endian
+ * read on both layouts, so decoding differs by offsets only.
+ */
+final class EventLayout {
+    static final EventLayout LAYOUT_32 = new EventLayout(16, 4);
+    static final EventLayout LAYOUT_64 = new EventLayout(24, 8);
+
+    final int size;
+    final int timeSecOffset;
+    final int timeUsecOffset;
+    final int typeOffset;
+    final int codeOffset;
+    final int valueOffset;
+
+    private EventLayout(int size, int longSize) {
+        this.size = size;
+        timeSecOffset = 0;
+        timeUsecOffset = longSize;
+        typeOffset = 2 * longSize;
+        codeOffset = typeOffset + 2;
+        valueOffset = codeOffset + 2;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pygoscelis.mobile.wakeup;
+
+import android.content.ActivityNotFoundException;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.media.AudioManager;
+import android.util.Log;
+import android.view.KeyEvent;
+
+import org.pygoscelis.mobile.wakeup.preference.AppPickerPreference;
+
+/**
+ * Action mapped to a wake gesture
+ *
+ * Actions are compiled once from the intent picked in settings, so that handling a gesture
+ * does not need to inspect intent extras or compare action strings.
+ */
+abstract class GestureAction {
+    private static final String TAG = "GestureAction";
+
+    /** Action runs with CPU awake, screen stays off */
+    static final int WAKE_LOCK_PARTIAL = 0;
+    /** Action turns screen on */
+    static final int WAKE_LOCK_SCREEN = 1;
+
+    /** Every queued instance of the action runs */
+    static final int COALESCE_NONE = 0;
+    /** Action replaces its queued instance */
+    static final int COALESCE_REPLACE = 1;
+    /** Action and its queued instance cancel out */
+    static final int COALESCE_TOGGLE = 2;
+
+    // wake lock timeouts, activities may take a while to be started from cold
+    private static final long ACTIVITY_TIMEOUT_MS = 5000;
+    private static final long DEFAULT_TIMEOUT_MS = 2000;
+
+    private final int mWakeLockPolicy;
+    private final long mWakeLockTimeoutMs;
+
+    GestureAction(int wakeLockPolicy, long wakeLockTimeoutMs) {
+        mWakeLockPolicy = wakeLockPolicy;
+        mWakeLockTimeoutMs = wakeLockTimeoutMs;
+    }
+
+    /**
+     * @return WAKE_LOCK_PARTIAL or WAKE_LOCK_SCREEN
+     */
+    int getWakeLockPolicy() {
+        return mWakeLockPolicy;
+    }
+
+    /**
+     * @return maximum time wake lock is held for the action, in milliseconds
+     */
+    long getWakeLockTimeoutMs() {
+        return mWakeLockTimeoutMs;
+    }
+
+    /**
+     * @return how queued instances of the action are coalesced, COALESCE_NONE by default
+     */
+    int getCoalescing() {
+        return COALESCE_NONE;
+    }
+
+    /**
+     * @return key identifying instances of the action when coalescing, the action itself
+     * by default
+     */
+    Object getCoalesceKey() {
+        return this;
+    }
+
+    /**
+     * Executes the action, called while wake lock of the action policy is held
+     */
+    abstract void execute(Context context);
+
+    /**
+     * Compiles intent picked in settings into action
+     * @param intent intent created by AppPickerPreference or null
+     * @return action or null in case intent does not map to any action
+     */
+    static GestureAction compile(Context context, Intent intent) {
+        if (intent == null || !intent.hasExtra("mode")) return null;
+
+        final int wakeLockPolicy = intent.getBooleanExtra(
+                AppPickerPreference.EXTRA_KEEP_SCREEN_OFF, false) ?
+                WAKE_LOCK_PARTIAL : WAKE_LOCK_SCREEN;
+        final int mode = intent.getIntExtra("mode", AppPickerPreference.MODE_APP);
+        if (mode == AppPickerPreference.MODE_APP || mode == AppPickerPreference.MODE_SHORTCUT) {
+            return new StartActivityAction(context, intent, wakeLockPolicy);
+        } else if (mode != AppPickerPreference.MODE_ACTION) {
+            return null;
+        }
+
+        final String action = intent.getAction();
+        if (AppPickerPreference.ACTION_TOGGLE_TORCH.equals(action)) {
+            return new StartServiceAction(new Intent(context, TorchService.class)
+                    .setAction(TorchService.ACTION_TOGGLE_TORCH), true, wakeLockPolicy);
+        } else if (AppPickerPreference.ACTION_MEDIA_CONTROL.equals(action)) {
+            return new MediaControlAction(intent.getIntExtra(
+                    AppPickerPreference.EXTRA_MC_KEYCODE, 0), wakeLockPolicy);
+        } else if (AppPickerPreference.ACTION_SCREEN_DOZE.equals(action)) {
+            return new BroadcastAction(new Intent("com.android.systemui.doze.pulse"),
+                    wakeLockPolicy);
+        }
+        // screen on and unknown actions only need the wake lock
+        return new WakeOnlyAction(wakeLockPolicy);
+    }
+
+    private static final class StartActivityAction extends GestureAction {
+        private final Intent mIntent;
+
+        StartActivityAction(Context context, Intent intent, int wakeLockPolicy) {
+            super(wakeLockPolicy, ACTIVITY_TIMEOUT_MS);
+            mIntent = new Intent(intent);
+            if (mIntent.getComponent() == null) {
+                ComponentName component = mIntent.resolveActivity(context.getPackageManager());
+                if (component != null) {
+                    mIntent.setComponent(component);
+                }
+            }
+        }
+
+        @Override
+        int getCoalescing() {
+            return COALESCE_REPLACE;
+        }
+
+        @Override
+        void execute(Context context) {
+            try {
+                context.startActivity(mIntent);
+            } catch (ActivityNotFoundException e) {
+                Log.w(TAG, "Activity not found: " + e.getMessage());
+            }
+        }
+    }
+
+    private static final class StartServiceAction extends GestureAction {
+        private final Intent mIntent;
+        private final boolean mToggle;
+
+        /**
+         * @param toggle true in case two starts of the service undo each other
+         */
+        StartServiceAction(Intent intent, boolean toggle, int wakeLockPolicy) {
+            super(wakeLockPolicy, DEFAULT_TIMEOUT_MS);
+            mIntent = intent;
+            mToggle = toggle;
+        }
+
+        @Override
+        int getCoalescing() {
+            return mToggle ? COALESCE_TOGGLE : COALESCE_NONE;
+        }
+
+        @Override
+        Object getCoalesceKey() {
+            // toggles of the same service coalesce whichever gesture they are mapped to
+            return mIntent.getAction();
+        }
+
+        @Override
+        void execute(Context context) {
+            try {
+                context.startService(mIntent);
+            } catch (Throwable t) {
+                Log.d(TAG, "Error starting service: " + t.getMessage());
+            }
+        }
+    }
+
+    private static final class BroadcastAction extends GestureAction {
+        private final Intent mIntent;
+
+        BroadcastAction(Intent intent, int wakeLockPolicy) {
+            super(wakeLockPolicy, DEFAULT_TIMEOUT_MS);
+            mIntent = intent;
+        }
+
+        @Override
+        int getCoalescing() {
+            return COALESCE_REPLACE;
+        }
+
+        @Override
+        void execute(Context context) {
+            context.sendBroadcast(mIntent);
+        }
+    }
+
+    private static final class MediaControlAction extends GestureAction {
+        private final Intent mDownIntent;
+        private final Intent mUpIntent;
+
+        MediaControlAction(int keyCode, int wakeLockPolicy) {
+            super(wakeLockPolicy, DEFAULT_TIMEOUT_MS);
+            mDownIntent = new Intent(Intent.ACTION_MEDIA_BUTTON, null);
+            mDownIntent.putExtra(Intent.EXTRA_KEY_EVENT, new KeyEvent(KeyEvent.ACTION_DOWN, keyCode));
+            mUpIntent = new Intent(Intent.ACTION_MEDIA_BUTTON, null);
+            mUpIntent.putExtra(Intent.EXTRA_KEY_EVENT, new KeyEvent(KeyEvent.ACTION_UP, keyCode));
+        }
+
+        @Override
+        void execute(Context context) {
+            final AudioManager am = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+            if (am == null) {
+                Log.w(TAG, "isMusicActive: couldn't get AudioManager reference");
+                return;
+            }
+            if (am.isMusicActive()) {
+                context.sendOrderedBroadcast(mDownIntent, null);
+                context.sendOrderedBroadcast(mUpIntent, null);
+            }
+        }
+    }
+
+    private static final class WakeOnlyAction extends GestureAction {
+        WakeOnlyAction(int wakeLockPolicy) {
+            super(wakeLockPolicy, DEFAULT_TIMEOUT_MS);
+        }
+
+        @Override
+        int getCoalescing() {
+            return COALESCE_REPLACE;
+        }
+
+        @Override
+        void execute(Context context) {
+            // do nothing as wake lock already did it for us
+        }
+    }
+}
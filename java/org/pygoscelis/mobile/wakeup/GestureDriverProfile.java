@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pygoscelis.mobile.wakeup;
+
+/**
+ * Describes how a kernel driver reports wake gestures as input events
+ *
+ * A profile is a lookup table indexed by event type, code and value, so classifying an
+ * input event is a few array reads. Profiles are parsed from entries of the form
+ * "type:code:value=GESTURE", e.g. "EV_REL:11:1=SWEEP_RIGHT" or "EV_KEY:KEY_WAKEUP:1=DOUBLETAP".
+ * Type and code are numbers or known names, value "*" matches values without an entry of
+ * their own.
+ */
+public final class GestureDriverProfile {
+    public static final int EV_KEY = 1;
+    public static final int EV_REL = 2;
+    public static final int KEY_WAKEUP = 143;
+    /** Event code ElementalX kernels report gesture ids with */
+    public static final int DEFAULT_GESTURE_CODE = 11;
+
+    private static final int EV_CNT = 0x20;
+    private static final int CODE_CNT = 0x300;
+    private static final int VALUE_CNT = 64;
+
+    /** Profile of ElementalX kernels reporting gesture ids 1-5 as EV_REL code 11 */
+    public static final GestureDriverProfile DEFAULT = parse(new String[] {
+        "EV_REL:11:1=SWEEP_RIGHT",
+        "EV_REL:11:2=SWEEP_LEFT",
+        "EV_REL:11:3=SWEEP_UP",
+        "EV_REL:11:4=SWEEP_DOWN",
+        "EV_REL:11:5=DOUBLETAP",
+        "EV_REL:11:*=UNKNOWN"
+    });
+
+    // gestures indexed by [type][code][value], null where there is no gesture
+    private final WakeGesture[][][] mGestures = new WakeGesture[EV_CNT][][];
+    // gestures of values without an entry of their own, indexed by [type][code]
+    private final WakeGesture[][] mFallbacks = new WakeGesture[EV_CNT][];
+
+    private GestureDriverProfile() { }
+
+    /**
+     * Parses profile entries
+     * @param entries entries of the form "type:code:value=GESTURE"
+     * @return profile
+     * @throws IllegalArgumentException in case an entry is malformed
+     */
+    public static GestureDriverProfile parse(String[] entries) {
+        GestureDriverProfile profile = new GestureDriverProfile();
+        for (String entry : entries) {
+            String[] parts = entry.trim().split("[:=]");
+            if (parts.length != 4)
+                throw new IllegalArgumentException("Malformed profile entry: " + entry);
+
+            int type = parseNumber(parts[0], entry);
+            int code = parseNumber(parts[1], entry);
+            WakeGesture gesture;
+            try {
+                gesture = WakeGesture.valueOf(parts[3]);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown gesture in profile entry: " + entry);
+            }
+            if (type < 0 || type >= EV_CNT || code < 0 || code >= CODE_CNT)
+                throw new IllegalArgumentException("Type or code out of range: " + entry);
+
+            if (parts[2].equals("*")) {
+                profile.codeGestures(type, code);
+                profile.mFallbacks[type][code] = gesture;
+            } else {
+                int value = parseNumber(parts[2], entry);
+                if (value < 0 || value >= VALUE_CNT)
+                    throw new IllegalArgumentException("Value out of range: " + entry);
+                profile.codeGestures(type, code)[value] = gesture;
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Checks whether events of given type and code can carry a wake gesture
+     */
+    public boolean accepts(int type, int code) {
+        if (type < 0 || type >= EV_CNT) return false;
+        final WakeGesture[][] codes = mGestures[type];
+        return codes != null && code >= 0 && code < codes.length && codes[code] != null;
+    }
+
+    /**
+     * @return every accepted type and code pair as (type << 16 | code)
+     */
+    public int[] getAcceptedEvents() {
+        int count = 0;
+        for (int type = 0; type < EV_CNT; type++) {
+            if (mGestures[type] == null) continue;
+            for (int code = 0; code < mGestures[type].length; code++) {
+                if (mGestures[type][code] != null) count++;
+            }
+        }
+        final int[] events = new int[count];
+        int i = 0;
+        for (int type = 0; type < EV_CNT; type++) {
+            if (mGestures[type] == null) continue;
+            for (int code = 0; code < mGestures[type].length; code++) {
+                if (mGestures[type][code] != null) events[i++] = type << 16 | code;
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Classifies input event
+     * @return wake gesture reported by the event or null in case it does not report one
+     */
+    public WakeGesture classify(int type, int code, int value) {
+        if (!accepts(type, code)) return null;
+
+        final WakeGesture[] values = mGestures[type][code];
+        if (value >= 0 && value < values.length && values[value] != null) {
+            return values[value];
+        }
+        return mFallbacks[type][code];
+    }
+
+    /**
+     * Gets gestures of given type and code indexed by value, allocating them when needed
+     */
+    private WakeGesture[] codeGestures(int type, int code) {
+        if (mGestures[type] == null || mGestures[type].length <= code) {
+            WakeGesture[][] gestures = new WakeGesture[code + 1][];
+            WakeGesture[] fallbacks = new WakeGesture[code + 1];
+            if (mGestures[type] != null) {
+                System.arraycopy(mGestures[type], 0, gestures, 0, mGestures[type].length);
+                System.arraycopy(mFallbacks[type], 0, fallbacks, 0, mFallbacks[type].length);
+            }
+            mGestures[type] = gestures;
+            mFallbacks[type] = fallbacks;
+        }
+        if (mGestures[type][code] == null) {
+            mGestures[type][code] = new WakeGesture[VALUE_CNT];
+        }
+        return mGestures[type][code];
+    }
+
+    private static int parseNumber(String s, String entry) {
+        if (s.equals("EV_KEY")) return EV_KEY;
+        if (s.equals("EV_REL")) return EV_REL;
+        if (s.equals("KEY_WAKEUP")) return KEY_WAKEUP;
+        try {
+            return Integer.decode(s);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unknown number in profile entry: " + entry);
+        }
+    }
+}
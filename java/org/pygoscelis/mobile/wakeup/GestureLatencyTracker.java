@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pygoscelis.mobile.wakeup;
+
+import java.io.PrintWriter;
+
+import android.os.SystemClock;
+
+/**
+ * Per gesture latency histograms of every stage a wake gesture goes through:
+ * kernel -> reader thread -> dispatch -> action start -> wake lock released
+ *
+ * Actions run asynchronously and several actions of the same gesture may be queued at once,
+ * so the tracker keeps no per gesture state: the executor carries the stage timestamps of each
+ * queued action and passes them back once the action runs.
+ */
+public class GestureLatencyTracker {
+    public static final int STAGE_READ = 0;
+    public static final int STAGE_DISPATCH = 1;
+    public static final int STAGE_ACTION = 2;
+    public static final int STAGE_RELEASE = 3;
+    public static final int STAGE_TOTAL = 4;
+    private static final int STAGE_COUNT = 5;
+
+    private static final String[] STAGE_NAMES = new String[] {
+        "kernel->reader", "reader->dispatch", "dispatch->action", "action->release", "total"
+    };
+
+    private static Object sLock = new Object();
+    private static GestureLatencyTracker sInstance;
+
+    private final LatencyHistogram[][] mHistograms;
+
+    /**
+     * Creates or gets existing instance of GestureLatencyTracker
+     * @return GestureLatencyTracker instance
+     */
+    public static GestureLatencyTracker getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new GestureLatencyTracker();
+            }
+        }
+        return sInstance;
+    }
+
+    private GestureLatencyTracker() {
+        final int count = WakeGesture.values().length;
+        mHistograms = new LatencyHistogram[count][STAGE_COUNT];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < STAGE_COUNT; j++) {
+                mHistograms[i][j] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * Converts input_event timestamp to delay between kernel and now.
+     * Kernel stamps input events using wall clock unless CLOCK_MONOTONIC was requested with
+     * EVIOCSCLOCKID. Delay of wall clock stamps is wrong after wall clock is set, e.g. by NTP.
+     * @param timeSec low 32 bits of timeval seconds
+     * @param timeUsec timeval microseconds
+     * @param monotonic true in case the event is stamped with CLOCK_MONOTONIC
+     * @return microseconds elapsed since the event was reported by kernel
+     */
+    public static long kernelDelayUs(int timeSec, int timeUsec, boolean monotonic) {
+        long eventUs = (timeSec & 0xFFFFFFFFL) * 1000000L + timeUsec;
+        // System.nanoTime() reads CLOCK_MONOTONIC
+        long nowUs = monotonic ? System.nanoTime() / 1000L : System.currentTimeMillis() * 1000L;
+        long delayUs = nowUs - eventUs;
+        return delayUs < 0 ? 0 : delayUs;
+    }
+
+    /**
+     * Records gesture being dispatched to listeners
+     * @param gesture gesture being dispatched
+     * @param kernelDelayUs delay between kernel and reader thread
+     * @param readNanos elapsed realtime in nanoseconds when reader thread got the event
+     */
+    public void onDispatch(WakeGesture gesture, long kernelDelayUs, long readNanos) {
+        final int i = gesture.ordinal();
+        final long now = SystemClock.elapsedRealtimeNanos();
+        mHistograms[i][STAGE_READ].record(kernelDelayUs);
+        mHistograms[i][STAGE_DISPATCH].record((now - readNanos) / 1000L);
+    }
+
+    /**
+     * Records start of action mapped to gesture
+     * @param dispatchNanos elapsed realtime in nanoseconds when the action was queued
+     * @return elapsed realtime in nanoseconds of action start, to pass to onWakeLockReleased()
+     */
+    public long onActionStart(WakeGesture gesture, long dispatchNanos) {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        mHistograms[gesture.ordinal()][STAGE_ACTION].record((now - dispatchNanos) / 1000L);
+        return now;
+    }
+
+    /**
+     * Records release of wake lock held by action mapped to gesture
+     * @param startNanos elapsed realtime in nanoseconds when kernel reported the gesture
+     * @param actionNanos value returned by onActionStart()
+     */
+    public void onWakeLockReleased(WakeGesture gesture, long startNanos, long actionNanos) {
+        final int i = gesture.ordinal();
+        final long now = SystemClock.elapsedRealtimeNanos();
+        mHistograms[i][STAGE_RELEASE].record((now - actionNanos) / 1000L);
+        mHistograms[i][STAGE_TOTAL].record((now - startNanos) / 1000L);
+    }
+
+    public LatencyHistogram getHistogram(WakeGesture gesture, int stage) {
+        return mHistograms[gesture.ordinal()][stage];
+    }
+
+    public void reset() {
+        for (LatencyHistogram[] histograms : mHistograms) {
+            for (LatencyHistogram histogram : histograms) {
+                histogram.reset();
+            }
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("Gesture latency:");
+        for (WakeGesture gesture : WakeGesture.values()) {
+            LatencyHistogram[] histograms = mHistograms[gesture.ordinal()];
+            if (histograms[STAGE_READ].getTotalCount() == 0) continue;
+            pw.println("  " + gesture + ":");
+            for (int j = 0; j < STAGE_COUNT; j++) {
+                pw.println("    " + STAGE_NAMES[j] + ": " + histograms[j].toSummary());
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pygoscelis.mobile.wakeup;
+
+import java.io.PrintWriter;
+
+import android.util.Log;
+
+/**
+ * Decides whether wake gestures come too often to be handled
+ *
+ * Every gesture has its own debounce window, which drops repeats reported shortly after
+ * an accepted gesture, and its own token bucket, which bounds how many gestures are accepted
+ * per minute while still allowing short bursts. State is kept in arrays indexed by gesture
+ * ordinal, event timestamps are used so that the check does not read the clock.
+ */
+class GestureRateLimiter {
+    private static final String TAG = "GestureRateLimiter";
+    private static final boolean DEBUG = false;
+
+    private static final long NANOS_PER_MINUTE = 60000000000L;
+
+    private final long mDebounceNanos;
+    private final long mBurst;
+    // nanoseconds it takes to refill one token, 0 disables rate limiting
+    private final long mRefillNanos;
+
+    // state indexed by gesture ordinal, guarded by this
+    private final long[] mLastAcceptedNanos = new long[WakeGesture.values().length];
+    private final long[] mTokens = new long[WakeGesture.values().length];
+    private final long[] mTokenUpdateNanos = new long[WakeGesture.values().length];
+    private final long[] mDebouncedCounts = new long[WakeGesture.values().length];
+    private final long[] mRateLimitedCounts = new long[WakeGesture.values().length];
+
+    /**
+     * @param debounceMs minimum time between accepted gestures of the same kind, 0 disables
+     * @param ratePerMinute gestures of the same kind accepted per minute, 0 disables
+     * @param burst gestures of the same kind accepted in a row before rate applies
+     */
+    GestureRateLimiter(long debounceMs, int ratePerMinute, int burst) {
+        if (debounceMs < 0 || ratePerMinute < 0 || burst < 1)
+            throw new IllegalArgumentException("Invalid rate limit");
+
+        mDebounceNanos = debounceMs * 1000000L;
+        mBurst = burst;
+        mRefillNanos = ratePerMinute == 0 ? 0 : NANOS_PER_MINUTE / ratePerMinute;
+        for (int i = 0; i < mLastAcceptedNanos.length; i++) {
+            mLastAcceptedNanos[i] = Long.MIN_VALUE;
+            mTokens[i] = burst;
+            mTokenUpdateNanos[i] = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Accepts gesture unless it comes too often. Accepted gesture counts against the limits.
+     * @param eventNanos event time of the gesture on elapsed realtime clock
+     * @return false in case gesture is suppressed
+     */
+    boolean accept(WakeGesture gesture, long eventNanos) {
+        final boolean accepted = check(gesture.ordinal(), eventNanos, true);
+        if (!accepted && DEBUG) Log.d(TAG, "Suppressed " + gesture);
+        return accepted;
+    }
+
+    /**
+     * Tells whether accept() would accept gesture now, without counting it against the limits
+     * @param eventNanos event time of the gesture on elapsed realtime clock
+     */
+    boolean wouldAccept(WakeGesture gesture, long eventNanos) {
+        return check(gesture.ordinal(), eventNanos, false);
+    }
+
+    private synchronized boolean check(int i, long nowNanos, boolean consume) {
+        if (mDebounceNanos > 0 && mLastAcceptedNanos[i] != Long.MIN_VALUE &&
+                nowNanos - mLastAcceptedNanos[i] < mDebounceNanos) {
+            if (consume) mDebouncedCounts[i]++;
+            return false;
+        }
+
+        if (mRefillNanos > 0) {
+            long tokens = mTokens[i];
+            long updateNanos = mTokenUpdateNanos[i];
+            if (updateNanos == Long.MIN_VALUE) {
+                updateNanos = nowNanos;
+            } else if (tokens < mBurst) {
+                final long refilled = (nowNanos - updateNanos) / mRefillNanos;
+                if (refilled > 0) {
+                    tokens = Math.min(mBurst, tokens + refilled);
+                    updateNanos += refilled * mRefillNanos;
+                }
+            } else {
+                updateNanos = nowNanos;
+            }
+            if (tokens == 0) {
+                if (consume) mRateLimitedCounts[i]++;
+                return false;
+            }
+            if (consume) {
+                mTokens[i] = tokens - 1;
+                mTokenUpdateNanos[i] = updateNanos;
+            }
+        }
+
+        if (consume) mLastAcceptedNanos[i] = nowNanos;
+        return true;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Suppressed gestures:");
+        for (WakeGesture gesture : WakeGesture.values()) {
+            final int i = gesture.ordinal();
+            if (mDebouncedCounts[i] == 0 && mRateLimitedCounts[i] == 0) continue;
+            pw.println("  " + gesture + ": debounced=" + mDebouncedCounts[i] +
+                    " rateLimited=" + mRateLimitedCounts[i]);
+        }
+    }
+}
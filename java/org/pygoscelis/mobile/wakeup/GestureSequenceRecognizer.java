@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pygoscelis.mobile.wakeup;
+
+import java.util.Arrays;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Listener recognizing combos, ordered sequences of wake gestures like DOUBLETAP then
+ * SWEEP_UP, before passing gestures on to another listener
+ *
+ * Enabled combos are compiled into a trie whose transitions are kept in a table indexed by
+ * node and gesture ordinal, so every gesture is a single table lookup. Each step of a combo
+ * must follow the previous one within the combo timeout.
+ *
+ * Gestures which may start a combo are held back, but never longer than the maximum delay:
+ * then they are passed on as single gestures while the combo can still complete. Gestures
+ * still held back when a combo completes are swallowed by it. Held back gestures are timed
+ * on the looper of the thread gestures are dispatched on; without a looper, e.g. with direct
+ * dispatch, nothing is held back.
+ *
+ * Listener and callback are called on the dispatching thread without holding the recognizer
+ * lock, so that they may block or call back into the recognizer.
+ */
+class GestureSequenceRecognizer implements IWakeGestureEventListener {
+    private static final int ROOT = 0;
+    private static final int NONE = -1;
+    private static final int GESTURE_COUNT = WakeGesture.values().length;
+
+    /**
+     * Callback receiving recognized combos
+     */
+    interface Callback {
+        /**
+         * @param combo index of the combo in combos passed to recognizer
+         * @param event last gesture of the combo, valid only during this call
+         */
+        void onWakeGestureCombo(int combo, WakeGestureEvent event);
+    }
+
+    private final IWakeGestureEventListener mListener;
+    private final Callback mCallback;
+    private final WakeGesture[][] mCombos;
+    private final boolean[] mEnabled;
+    private final long mTimeoutNanos;
+    private final long mMaxDelayMs;
+    // bound to looper of dispatching thread, guarded by this
+    private Handler mHandler;
+
+    // trie of enabled combos: transitions indexed by node * GESTURE_COUNT + ordinal and
+    // combo completed by every node, guarded by this
+    private int[] mTransitions = new int[GESTURE_COUNT];
+    private int[] mNodeCombos = new int[] { NONE };
+
+    private int mNode = ROOT;
+    private long mLastStepNanos;
+    // gestures of the combo in progress, the first mDelivered of them were passed on already
+    private final WakeGestureEvent[] mPending;
+    private int mPendingCount;
+    private int mDelivered;
+    // held back gestures being passed on, used by dispatching thread only
+    private final WakeGestureEvent[] mOutgoing;
+
+    /**
+     * @param listener listener receiving gestures which are not swallowed by a combo
+     * @param callback callback receiving recognized combos
+     * @param combos gestures of every combo, no combo may start another one
+     * @param timeoutMs maximum time between two steps of a combo
+     * @param maxDelayMs maximum time a gesture is held back, capped by timeout
+     * @throws IllegalArgumentException in case a combo is shorter than two gestures or
+     * starts another combo
+     */
+    GestureSequenceRecognizer(IWakeGestureEventListener listener, Callback callback,
+            WakeGesture[][] combos, long timeoutMs, long maxDelayMs) {
+        checkCombos(combos);
+        int maxLength = 0;
+        for (WakeGesture[] combo : combos) {
+            maxLength = Math.max(maxLength, combo.length);
+        }
+
+        mListener = listener;
+        mCallback = callback;
+        mCombos = combos.clone();
+        mEnabled = new boolean[combos.length];
+        mTimeoutNanos = timeoutMs * 1000000L;
+        mMaxDelayMs = Math.min(maxDelayMs, timeoutMs);
+        mPending = new WakeGestureEvent[maxLength];
+        mOutgoing = new WakeGestureEvent[maxLength];
+        for (int i = 0; i < maxLength; i++) {
+            mPending[i] = new WakeGestureEvent();
+            mOutgoing[i] = new WakeGestureEvent();
+        }
+        Arrays.fill(mTransitions, NONE);
+    }
+
+    /**
+     * Parses combo definitions
+     * @param entries gesture names of every combo separated by commas, e.g. "DOUBLETAP,SWEEP_UP"
+     * @throws IllegalArgumentException in case a gesture is unknown or combos are invalid
+     */
+    static WakeGesture[][] parseCombos(String[] entries) {
+        WakeGesture[][] combos = new WakeGesture[entries.length][];
+        for (int i = 0; i < entries.length; i++) {
+            String[] names = entries[i].split(",");
+            combos[i] = new WakeGesture[names.length];
+            for (int j = 0; j < names.length; j++) {
+                combos[i][j] = WakeGesture.valueOf(names[j].trim());
+            }
+        }
+        checkCombos(combos);
+        return combos;
+    }
+
+    private static void checkCombos(WakeGesture[][] combos) {
+        for (int i = 0; i < combos.length; i++) {
+            if (combos[i].length < 2)
+                throw new IllegalArgumentException("Combo needs at least two gestures");
+            for (int j = 0; j < combos.length; j++) {
+                if (i != j && startsWith(combos[j], combos[i]))
+                    throw new IllegalArgumentException("Combo starts another combo");
+            }
+        }
+    }
+
+    /**
+     * Enables or disables recognition of a combo, e.g. once an action is mapped to it.
+     * Gestures are only held back while they may start an enabled combo. Gestures held back
+     * by a combo in progress are passed on by the dispatching thread.
+     */
+    synchronized void setComboEnabled(int combo, boolean enabled) {
+        if (mEnabled[combo] == enabled) return;
+
+        mEnabled[combo] = enabled;
+        compile();
+    }
+
+    /**
+     * @return true in case gesture may start an enabled combo, so that it is held back
+     */
+    synchronized boolean mayStartCombo(WakeGesture gesture) {
+        return mTransitions[gesture.ordinal()] != NONE;
+    }
+
+    /**
+     * Drops held back gestures without passing them on and returns to root of the trie,
+     * e.g. when the listener goes away
+     */
+    synchronized void cancel() {
+        if (mHandler != null) mHandler.removeCallbacks(mDeliverRunnable);
+        mPendingCount = 0;
+        mDelivered = 0;
+        mNode = ROOT;
+    }
+
+    @Override
+    public void onWakeGestureEvent(WakeGestureEvent event) {
+        final int flushed;
+        boolean passOn = false;
+        int combo = NONE;
+        synchronized (this) {
+            final boolean holdBack = mMaxDelayMs > 0 && bindHandler();
+            if (mNode != ROOT && event.eventNanos - mLastStepNanos > mTimeoutNanos) {
+                mNode = ROOT;
+            }
+
+            int next = mTransitions[mNode * GESTURE_COUNT + event.gesture.ordinal()];
+            if (next == NONE && mNode != ROOT) {
+                // sequence broken, the gesture may still start another combo
+                mNode = ROOT;
+                next = mTransitions[event.gesture.ordinal()];
+            }
+            // gestures held back by a broken or timed out sequence go first
+            flushed = mNode == ROOT ? takeUndelivered() : 0;
+            if (next == NONE) {
+                passOn = true;
+            } else {
+                combo = step(next, event, holdBack);
+                passOn = combo == NONE && !holdBack;
+            }
+        }
+
+        deliver(flushed);
+        if (combo != NONE) {
+            mCallback.onWakeGestureCombo(combo, event);
+        } else if (passOn) {
+            mListener.onWakeGestureEvent(event);
+        }
+    }
+
+    @Override
+    public void onProcessingException(Exception e) {
+        mListener.onProcessingException(e);
+    }
+
+    /**
+     * Binds handler to looper of current thread
+     * @return false in case current thread has no looper
+     */
+    private boolean bindHandler() {
+        final Looper looper = Looper.myLooper();
+        if (looper == null) return false;
+        if (mHandler == null || mHandler.getLooper() != looper) {
+            if (mHandler != null) mHandler.removeCallbacks(mDeliverRunnable);
+            mHandler = new Handler(looper);
+            if (mPendingCount > mDelivered) {
+                mHandler.postDelayed(mDeliverRunnable, mMaxDelayMs);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves to given node, gesture is passed on by caller unless it is held back
+     * @return combo completed by the gesture, NONE otherwise
+     */
+    private int step(int node, WakeGestureEvent event, boolean holdBack) {
+        mNode = node;
+        mLastStepNanos = event.eventNanos;
+
+        final int combo = mNodeCombos[node];
+        if (combo != NONE) {
+            mPendingCount = 0;
+            mDelivered = 0;
+            mNode = ROOT;
+            if (mHandler != null) mHandler.removeCallbacks(mDeliverRunnable);
+            return combo;
+        }
+
+        mPending[mPendingCount++].copyFrom(event);
+        if (!holdBack) {
+            mDelivered = mPendingCount;
+        } else if (mPendingCount - mDelivered == 1) {
+            mHandler.postDelayed(mDeliverRunnable, mMaxDelayMs);
+        }
+        return NONE;
+    }
+
+    /**
+     * Copies held back gestures to mOutgoing, to be passed on once lock is released.
+     * Pending gestures are dropped once the trie is back at root.
+     * @return number of gestures copied
+     */
+    private int takeUndelivered() {
+        int count = 0;
+        for (; mDelivered < mPendingCount; mDelivered++) {
+            mOutgoing[count++].copyFrom(mPending[mDelivered]);
+        }
+        if (mNode == ROOT) {
+            mPendingCount = 0;
+            mDelivered = 0;
+        }
+        if (mHandler != null) mHandler.removeCallbacks(mDeliverRunnable);
+        return count;
+    }
+
+    private void deliver(int count) {
+        for (int i = 0; i < count; i++) {
+            mListener.onWakeGestureEvent(mOutgoing[i]);
+        }
+    }
+
+    private final Runnable mDeliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final int count;
+            synchronized (GestureSequenceRecognizer.this) {
+                count = takeUndelivered();
+            }
+            deliver(count);
+        }
+    };
+
+    /**
+     * Builds trie of enabled combos
+     */
+    private void compile() {
+        int nodeCount = 1;
+        for (int i = 0; i < mCombos.length; i++) {
+            if (mEnabled[i]) nodeCount += mCombos[i].length;
+        }
+        final int[] transitions = new int[nodeCount * GESTURE_COUNT];
+        final int[] nodeCombos = new int[nodeCount];
+        Arrays.fill(transitions, NONE);
+        Arrays.fill(nodeCombos, NONE);
+
+        int used = 1;
+        for (int i = 0; i < mCombos.length; i++) {
+            if (!mEnabled[i]) continue;
+            int node = ROOT;
+            for (WakeGesture gesture : mCombos[i]) {
+                final int index = node * GESTURE_COUNT + gesture.ordinal();
+                if (transitions[index] == NONE) {
+                    transitions[index] = used++;
+                }
+                node = transitions[index];
+            }
+            nodeCombos[node] = i;
+        }
+
+        // held back gestures are passed on by dispatching thread
+        mNode = ROOT;
+        if (mPendingCount > mDelivered && mHandler != null) {
+            mHandler.removeCallbacks(mDeliverRunnable);
+            mHandler.post(mDeliverRunnable);
+        }
+        mTransitions = transitions;
+        mNodeCombos = nodeCombos;
+    }
+
+    private static boolean startsWith(WakeGesture[] combo, WakeGesture[] prefix) {
+        if (prefix.length > combo.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (combo[i] != prefix[i]) return false;
+        }
+        return true;
+    }
+}
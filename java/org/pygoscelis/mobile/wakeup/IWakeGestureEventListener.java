@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pygoscelis.mobile.wakeup;
+
+/**
+ * Interface for Wake Gesture event and error handling with full event details
+ */
+public interface IWakeGestureEventListener {
+    /**
+     * Fires when wake gesture event is triggered
+     * @param event event holding the gesture, valid only during this call
+     */
+    void onWakeGestureEvent(WakeGestureEvent event);
+
+    /**
+     * Fires when error occurres during event processing
+     * @param e Exception containing error message and stack trace
+     */
+    void onProcessingException(Exception e);
+}
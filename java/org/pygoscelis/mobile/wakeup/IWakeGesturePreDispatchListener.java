@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pygoscelis.mobile.wakeup;
+
+/**
+ * Interface for work that has to start as soon as a wake gesture is decoded
+ */
+public interface IWakeGesturePreDispatchListener {
+    /**
+     * Fires on input reader thread when wake gesture is decoded, before it is dispatched.
+     * Implementation must be fast and must not block as it delays reading of input events.
+     * @param gesture WakeGesture that is about to be dispatched
+     * @param eventNanos time the gesture was reported by kernel, on elapsed realtime clock in
+     * nanoseconds, as WakeGestureEvent.getEventTimeNanos() will report it
+     */
+    void onWakeGesturePreDispatch(WakeGesture gesture, long eventNanos);
+
+    /**
+     * Fires on dispatching thread when a gesture reported by onWakeGesturePreDispatch is dropped
+     * before it reaches listeners, e.g. because it became stale or no listener was registered.
+     * @param gesture WakeGesture that was dropped
+     */
+    void onWakeGestureDropped(WakeGesture gesture);
+}
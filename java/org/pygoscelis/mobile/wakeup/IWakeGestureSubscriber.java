@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pygoscelis.mobile.wakeup;
+
+/**
+ * Subscriber of wake gesture stream, called on Handler of its WakeGestureSubscription
+ */
+public interface IWakeGestureSubscriber {
+    /**
+     * Fires for every gesture passing operators of the subscription
+     * @param event event holding the gesture, valid only during this call
+     */
+    void onWakeGesture(WakeGestureEvent event);
+
+    /**
+     * Fires at the end of every window in case window operator is set
+     * @param counts number of gestures in the window indexed by gesture ordinal,
+     * valid only during this call
+     * @param startNanos start of the window on elapsed realtime clock
+     * @param endNanos end of the window on elapsed realtime clock
+     */
+    void onWakeGestureWindow(int[] counts, long startNanos, long endNanos);
+
+    /**
+     * Fires when error occurres during event processing
+     * @param e Exception containing error message and stack trace
+     */
+    void onProcessingException(Exception e);
+}
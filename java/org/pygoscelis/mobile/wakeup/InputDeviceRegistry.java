@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pygoscelis.mobile.wakeup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+/**
+ * Cache of input device name to event node mappings
+ *
+ * Sysfs is crawled once and the result is kept until an input device node is created or
+ * deleted in /dev/input. Mappings are also saved to a cache file, if one is set, so that
+ * a restarted process only has to check the cached nodes instead of crawling sysfs again.
+ */
+public class InputDeviceRegistry {
+    private static final String TAG = "InputDeviceRegistry";
+    private static final boolean DEBUG = false;
+
+    // links every input device, virtual ones as well as platform devices like touchscreens
+    private static final String SYSFS_INPUT_PATH = "/sys/class/input";
+    private static final String SYSFS_EVENT_NAME_PATH = "/sys/class/input/%s/device/name";
+    private static final String DEV_INPUT_PATH = "/dev/input";
+
+    private static Object sLock = new Object();
+    private static InputDeviceRegistry sInstance;
+
+    private Map<String, List<String>> mDevices;
+    private boolean mLoadedFromCache;
+    private File mCacheFile;
+    private FileObserver mObserver;
+
+    /**
+     * Creates or gets existing instance of InputDeviceRegistry
+     * @return InputDeviceRegistry instance
+     */
+    public static InputDeviceRegistry getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new InputDeviceRegistry();
+            }
+        }
+        return sInstance;
+    }
+
+    private InputDeviceRegistry() { }
+
+    /**
+     * Sets file used to keep mappings across process restarts
+     * @param cacheFile file in a private writable directory or null to disable persistence
+     */
+    public synchronized void setCacheFile(File cacheFile) {
+        mCacheFile = cacheFile;
+    }
+
+    /**
+     * Gets paths of event nodes of all input devices matching given names
+     * @param names input device names as found in sysfs
+     * @return list of event node paths, empty if no device matches
+     */
+    public synchronized List<String> getDevicePaths(String[] names) {
+        if (mDevices == null) {
+            mDevices = loadCache(names);
+            mLoadedFromCache = (mDevices != null);
+        }
+        if (mDevices == null || (mLoadedFromCache && !containsAll(mDevices, names))) {
+            mDevices = scan();
+            mLoadedFromCache = false;
+            saveCache();
+        }
+        startWatching();
+
+        List<String> devicePaths = new ArrayList<String>(names.length);
+        for (String name : names) {
+            List<String> eventNames = mDevices.get(name);
+            if (eventNames == null) continue;
+            for (String eventName : eventNames) {
+                devicePaths.add(DEV_INPUT_PATH + "/" + eventName);
+            }
+        }
+        return devicePaths;
+    }
+
+    /**
+     * Drops cached mappings so that next lookup crawls sysfs again
+     */
+    public synchronized void invalidate() {
+        if (DEBUG) Log.d(TAG, "invalidate");
+        mDevices = null;
+        if (mCacheFile != null) {
+            mCacheFile.delete();
+        }
+    }
+
+    private void startWatching() {
+        if (mObserver != null) return;
+
+        mObserver = new FileObserver(DEV_INPUT_PATH, FileObserver.CREATE | FileObserver.DELETE) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (path != null && path.startsWith("event")) {
+                    invalidate();
+                }
+            }
+        };
+        mObserver.startWatching();
+    }
+
+    private Map<String, List<String>> scan() {
+        if (DEBUG) Log.d(TAG, "Scanning " + SYSFS_INPUT_PATH);
+
+        Map<String, List<String>> devices = new HashMap<String, List<String>>();
+        File[] inputDirs = new File(SYSFS_INPUT_PATH).listFiles();
+        if (inputDirs == null) return devices;
+
+        for (File inputDir : inputDirs) {
+            // eventN and other handler nodes are linked here too, only inputN has the name
+            if (!inputDir.getName().startsWith("input") || !inputDir.isDirectory()) continue;
+            File[] inputFiles = inputDir.listFiles();
+            if (inputFiles == null) continue;
+            String name = null;
+            String eventName = null;
+            for (File inputFile : inputFiles) {
+                if (inputFile.getName().startsWith("event")) {
+                    eventName = inputFile.getName();
+                }
+                if (inputFile.getName().equals("name")) {
+                    name = FileUtils.readOneLine(inputFile.getAbsolutePath());
+                }
+            }
+            if (name != null && eventName != null) {
+                addDevice(devices, name, eventName);
+            }
+        }
+        return devices;
+    }
+
+    private static boolean containsAll(Map<String, List<String>> devices, String[] names) {
+        for (String name : names) {
+            if (!devices.containsKey(name)) return false;
+        }
+        return true;
+    }
+
+    private static void addDevice(Map<String, List<String>> devices, String name, String eventName) {
+        List<String> eventNames = devices.get(name);
+        if (eventNames == null) {
+            eventNames = new ArrayList<String>(1);
+            devices.put(name, eventNames);
+        }
+        eventNames.add(eventName);
+    }
+
+    /**
+     * Loads mappings of given names from cache file. Every loaded node is checked against sysfs.
+     * @return mappings or null in case cache is missing, stale or does not know all names
+     */
+    private Map<String, List<String>> loadCache(String[] names) {
+        if (mCacheFile == null || !mCacheFile.exists()) return null;
+
+        Map<String, List<String>> devices = new HashMap<String, List<String>>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mCacheFile), 512);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.lastIndexOf('\t');
+                if (separator <= 0) return null;
+                String name = line.substring(0, separator);
+                String eventName = line.substring(separator + 1);
+                if (!containsName(names, name)) continue;
+                String currentName = FileUtils.readOneLine(
+                        String.format(SYSFS_EVENT_NAME_PATH, eventName));
+                if (!name.equals(currentName)) return null;
+                addDevice(devices, name, eventName);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read cache " + mCacheFile, e);
+            return null;
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                // ignored, not much we can do anyway
+            }
+        }
+
+        if (!containsAll(devices, names)) return null;
+
+        if (DEBUG) Log.d(TAG, "Loaded cache: " + devices);
+        return devices;
+    }
+
+    private static boolean containsName(String[] names, String name) {
+        for (String n : names) {
+            if (n.equals(name)) return true;
+        }
+        return false;
+    }
+
+    private void saveCache() {
+        if (mCacheFile == null) return;
+
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, List<String>> entry : mDevices.entrySet()) {
+            for (String eventName : entry.getValue()) {
+                builder.append(entry.getKey()).append('\t').append(eventName).append('\n');
+            }
+        }
+        FileUtils.writeLine(mCacheFile.getAbsolutePath(), builder.toString());
+    }
+}
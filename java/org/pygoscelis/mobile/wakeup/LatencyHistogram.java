@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pygoscelis.mobile.wakeup;
+
+/**
+ * Fixed size histogram of latencies in microseconds
+ *
+ * Buckets are laid out the HdrHistogram way: every power of two range is split into
+ * SUB_BUCKET_COUNT linear sub-buckets, which keeps relative error of reported values
+ * within 1 / SUB_BUCKET_COUNT while memory stays constant. Recording does not allocate.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /** Highest trackable value, larger values are recorded as this one (~17 minutes) */
+    public static final long MAX_VALUE = (1L << 30) - 1;
+
+    private final long[] mCounts = new long[indexOf(MAX_VALUE) + 1];
+    private long mTotalCount;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+    private long mSum;
+
+    /**
+     * Records single latency
+     * @param valueUs latency in microseconds, negative values are recorded as 0
+     */
+    public synchronized void record(long valueUs) {
+        if (valueUs < 0) valueUs = 0;
+        if (valueUs > MAX_VALUE) valueUs = MAX_VALUE;
+
+        mCounts[indexOf(valueUs)]++;
+        mTotalCount++;
+        mSum += valueUs;
+        if (valueUs < mMin) mMin = valueUs;
+        if (valueUs > mMax) mMax = valueUs;
+    }
+
+    public synchronized long getTotalCount() {
+        return mTotalCount;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized long getMin() {
+        return mTotalCount == 0 ? 0 : mMin;
+    }
+
+    public synchronized long getMean() {
+        return mTotalCount == 0 ? 0 : mSum / mTotalCount;
+    }
+
+    /**
+     * Gets value at given percentile
+     * @param percentile percentile between 0 and 100
+     * @return highest value equivalent to bucket holding the percentile, 0 if histogram is empty
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (mTotalCount == 0) return 0;
+
+        long target = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * mTotalCount);
+        if (target < 1) target = 1;
+
+        long count = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            count += mCounts[i];
+            if (count >= target) {
+                return Math.min(highestValueOf(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mTotalCount = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+        mSum = 0;
+    }
+
+    /**
+     * @return summary line with count, mean and main percentiles
+     */
+    public synchronized String toSummary() {
+        return "n=" + mTotalCount + " min=" + getMin() + " mean=" + getMean() +
+                " p50=" + getValueAtPercentile(50) + " p90=" + getValueAtPercentile(90) +
+                " p99=" + getValueAtPercentile(99) + " max=" + mMax + " (us)";
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) return (int) value;
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (magnitude * SUB_BUCKET_COUNT) + (int) (value >> magnitude);
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+
+        int magnitude = index / SUB_BUCKET_COUNT - 1;
+        long top = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((top + 1) << magnitude) - 1;
+    }
+}
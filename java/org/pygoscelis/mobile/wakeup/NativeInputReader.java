@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pygoscelis.mobile.wakeup;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.util.Log;
+
+/**
+ * Reader of input devices backed by libwakeup_jni
+ *
+ * Devices are waited for with epoll and read in batches natively, where events are filtered
+ * and assembled into frames. Every read fills the frame buffer with records of complete
+ * frames: int source, int timeSec, int timeUsec, int count followed by count times
+ * short type, short code, int value, in native byte order.
+ *
+ * Devices are asked to stamp events with CLOCK_MONOTONIC, the clock of System.nanoTime().
+ * Devices whose kernel does not support it keep wall clock stamps.
+ */
+final class NativeInputReader {
+    private static final String TAG = "NativeInputReader";
+
+    static final int RECORD_HEADER_SIZE = 16;
+    static final int RECORD_EVENT_SIZE = 8;
+    // bytes a single native read of one device may produce at most
+    private static final int MAX_DEVICE_READ_SIZE = 64 * 16;
+
+    private static final boolean sAvailable;
+
+    static {
+        boolean available = false;
+        try {
+            System.loadLibrary("wakeup_jni");
+            available = true;
+        } catch (UnsatisfiedLinkError e) {
+            Log.w(TAG, "Native reader not available: " + e.getMessage());
+        }
+        sAvailable = available;
+    }
+
+    private long mHandle;
+
+    /**
+     * @return true if native library is loaded
+     */
+    static boolean isAvailable() {
+        return sAvailable;
+    }
+
+    /**
+     * Opens input devices
+     * @param devicePaths paths of input device nodes
+     * @param events accepted events as (type << 16 | code), every other event is dropped
+     * @param grab true to grab devices exclusively, failing to grab is not an error
+     * @throws IOException in case a device cannot be opened
+     */
+    NativeInputReader(String[] devicePaths, int[] events, boolean grab) throws IOException {
+        mHandle = nativeOpen(devicePaths, events, grab);
+    }
+
+    /**
+     * Asks kernel to stamp events read from input device with CLOCK_MONOTONIC instead of
+     * wall clock
+     * @param fd file descriptor of opened input device
+     * @return false in case native library is not available or kernel does not support it
+     */
+    static boolean setMonotonicClock(FileDescriptor fd) {
+        return sAvailable && nativeSetMonotonicClock(fd);
+    }
+
+    /**
+     * @return size of struct input_event read by this process, 0 in case native library is
+     * not available
+     */
+    static int getInputEventSize() {
+        return sAvailable ? nativeGetInputEventSize() : 0;
+    }
+
+    /**
+     * Allocates buffer large enough for frames of all devices read by single call to read()
+     */
+    static ByteBuffer allocateFrameBuffer(int deviceCount) {
+        return ByteBuffer.allocateDirect(Math.max(deviceCount, 1) * MAX_DEVICE_READ_SIZE)
+                .order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Blocks until frames are read or reader is woken up
+     * @param frames buffer allocated by allocateFrameBuffer(), filled from position 0
+     * @return number of bytes of frame records written, 0 when woken up
+     * @throws IOException in case reading fails or a device is closed
+     */
+    int read(ByteBuffer frames) throws IOException {
+        return nativeRead(mHandle, frames);
+    }
+
+    /**
+     * @param source index of input device in device paths
+     * @return true in case events of the device are stamped with CLOCK_MONOTONIC
+     */
+    boolean usesMonotonicClock(int source) {
+        return nativeUsesMonotonicClock(mHandle, source);
+    }
+
+    /**
+     * Wakes up thread blocked in read(). Every read returns 0 from then on.
+     */
+    synchronized void wakeUp() {
+        if (mHandle != 0) {
+            nativeWakeUp(mHandle);
+        }
+    }
+
+    /**
+     * Closes input devices, releasing grab. Must not be called while a read is in progress.
+     */
+    synchronized void close() {
+        if (mHandle != 0) {
+            nativeClose(mHandle);
+            mHandle = 0;
+        }
+    }
+
+    private static native long nativeOpen(String[] devicePaths, int[] events, boolean grab)
+            throws IOException;
+    private static native int nativeRead(long handle, ByteBuffer frames) throws IOException;
+    private static native void nativeWakeUp(long handle);
+    private static native boolean nativeUsesMonotonicClock(long handle, int source);
+    private static native boolean nativeSetMonotonicClock(FileDescriptor fd);
+    private static native int nativeGetInputEventSize();
+    private static native void nativeClose(long handle);
+}
@@ -38,15 +38,13 @@ public enum WakeGesture {
         mBitValue = bitValue;
     }
 
+    /**
+     * Gets wake gesture from id reported by ElementalX kernels
+     * @see GestureDriverProfile#DEFAULT
+     */
     public static WakeGesture createFromId(int id) {
-        switch (id) {
-            case 1: return SWEEP_RIGHT;
-            case 2: return SWEEP_LEFT;
-            case 3: return SWEEP_UP;
-            case 4: return SWEEP_DOWN;
-            case 5: return DOUBLETAP;
-            default: return UNKNOWN;
-        }
+        return GestureDriverProfile.DEFAULT.classify(GestureDriverProfile.EV_REL,
+                GestureDriverProfile.DEFAULT_GESTURE_CODE, id);
     }
 
     public boolean isEnabled() {
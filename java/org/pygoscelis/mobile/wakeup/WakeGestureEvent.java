@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pygoscelis.mobile.wakeup;
+
+/**
+ * Wake gesture together with the input event it was decoded from
+ *
+ * Instances are owned and recycled by WakeGestureProcessor. An event is only valid for
+ * the duration of the listener callback it is passed to, listeners must copy the values
+ * they want to keep.
+ */
+public final class WakeGestureEvent {
+    WakeGesture gesture;
+    int type;
+    int code;
+    int value;
+    int source;
+    String sourcePath;
+    long sequence;
+    int timeSec;
+    int timeUsec;
+    long eventNanos;
+    long readNanos;
+
+    WakeGestureEvent() { }
+
+    void copyFrom(WakeGestureEvent other) {
+        gesture = other.gesture;
+        type = other.type;
+        code = other.code;
+        value = other.value;
+        source = other.source;
+        sourcePath = other.sourcePath;
+        sequence = other.sequence;
+        timeSec = other.timeSec;
+        timeUsec = other.timeUsec;
+        eventNanos = other.eventNanos;
+        readNanos = other.readNanos;
+    }
+
+    /**
+     * @return WakeGesture that was triggered
+     */
+    public WakeGesture getGesture() {
+        return gesture;
+    }
+
+    /**
+     * @return input event type, e.g. EV_REL
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * @return input event code
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @return raw input event value the gesture was decoded from
+     */
+    public int getValue() {
+        return value;
+    }
+
+    /**
+     * @return index of input device the event was read from, -1 if unknown
+     */
+    public int getSource() {
+        return source;
+    }
+
+    /**
+     * @return path of input device the event was read from or null if unknown
+     */
+    public String getSourcePath() {
+        return sourcePath;
+    }
+
+    /**
+     * @return number of the gesture, increasing by one for every gesture dispatched by processor
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return kernel timestamp of the event: low 32 bits of wall clock seconds
+     */
+    public int getTimeSec() {
+        return timeSec;
+    }
+
+    /**
+     * @return kernel timestamp of the event: microseconds
+     */
+    public int getTimeUsec() {
+        return timeUsec;
+    }
+
+    /**
+     * @return time the event was reported by kernel, on elapsed realtime clock in nanoseconds
+     */
+    public long getEventTimeNanos() {
+        return eventNanos;
+    }
+
+    /**
+     * @return time the event was read by processor, on elapsed realtime clock in nanoseconds
+     */
+    public long getReadTimeNanos() {
+        return readNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "WakeGestureEvent{gesture=" + gesture + "; type=" + type + "; code=" + code +
+                "; value=" + value + "; source=" + sourcePath + "; seq=" + sequence +
+                "; eventNanos=" + eventNanos + "}";
+    }
+}
@@ -16,67 +16,189 @@
 
 package org.pygoscelis.mobile.wakeup;
 
+import java.io.File;
+import java.io.PrintWriter;
 import java.net.URISyntaxException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.EnumSet;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.media.AudioManager;
+import android.content.res.Resources;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.preference.PreferenceManager;
 import android.util.Log;
-import android.view.KeyEvent;
 
-import org.pygoscelis.mobile.wakeup.preference.AppPickerPreference;
-
-public class WakeGestureHandler implements IWakeGestureListener {
+public class WakeGestureHandler implements IWakeGestureEventListener,
+        IWakeGesturePreDispatchListener {
     private static final String TAG = "WakeGestureHandler";
+    private static final String INPUT_DEVICE_CACHE = "input_devices";
+    // speculative screen wake lock is released on its own in case no action takes it over
+    private static final long SPECULATIVE_WAKE_TIMEOUT_MS = 3000;
 
     private Context mContext;
     private SharedPreferences mPrefs;
     private WakeGestureProcessor mWgp;
-    private Map<WakeGesture, Intent> mWakeGestures;
+    // actions indexed by gesture ordinal, replaced as a whole when a mapping changes
+    private volatile GestureAction[] mActions = new GestureAction[WakeGesture.values().length];
     private PowerManager mPm;
-    private WakeLock mWakeLock;
+    private WakeLockPool mWakeLockPool;
+    private ActionExecutor mActionExecutor;
+    // gestures accepted by the limiter are passed to the recognizer, which passes gestures
+    // not swallowed by a combo on to mGestureListener
+    private GestureRateLimiter mRateLimiter;
+    private GestureSequenceRecognizer mSequenceRecognizer;
+    private WakeGesture[][] mCombos;
+    // actions indexed by combo, replaced as a whole when a mapping changes
+    private volatile GestureAction[] mComboActions;
+    private WakeLock mSpeculativeWakeLock;
 
     public WakeGestureHandler(Context context) {
         mContext = context;
         mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
         mPm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        mWakeLockPool = new WakeLockPool(mPm, TAG);
+        final Resources res = mContext.getResources();
+        mActionExecutor = new ActionExecutor(mContext, mWakeLockPool,
+                res.getInteger(R.integer.config_wakeGestureActionQueueSize),
+                res.getInteger(R.integer.config_wakeGestureActionDropPolicy));
+        mCombos = loadCombos(res);
+        mComboActions = new GestureAction[mCombos.length];
+        mSequenceRecognizer = new GestureSequenceRecognizer(mGestureListener, mComboCallback,
+                mCombos, res.getInteger(R.integer.config_wakeGestureComboTimeoutMs),
+                res.getInteger(R.integer.config_wakeGestureComboMaxDelayMs));
+        mRateLimiter = new GestureRateLimiter(
+                res.getInteger(R.integer.config_wakeGestureDebounceMs),
+                res.getInteger(R.integer.config_wakeGestureRatePerMinute),
+                res.getInteger(R.integer.config_wakeGestureRateBurst));
 
         initWakeGestures();
+        initSpeculativeWake();
         initWakeGestureProcessor();
     }
 
+    /**
+     * Stops wake gesture processing and releases all resources held by handler
+     */
+    public void destroy() {
+        mContext.unregisterReceiver(mBroadcastReceiver);
+        if (mWgp != null) {
+            mWgp.setPreDispatchListener(null);
+            mWgp.unregisterWakeGestureEventListener(this);
+            mWgp.stopProcessing();
+            mWgp = null;
+        }
+        // held back gestures must not run their action once the handler is gone
+        mSequenceRecognizer.cancel();
+        mActionExecutor.quit();
+        releaseSpeculativeWake();
+    }
+
+    /**
+     * Configures wake gesture processor and starts processing in case it is not running yet.
+     * Gestures read before a handler registers are replayed to it.
+     * @return WakeGestureProcessor instance
+     */
+    public static WakeGestureProcessor startProcessing(Context context) {
+        final Resources res = context.getResources();
+        InputDeviceRegistry.getInstance().setCacheFile(
+                new File(context.getCacheDir(), INPUT_DEVICE_CACHE));
+        WakeGestureProcessor wgp = WakeGestureProcessor.getInstance();
+        wgp.setInputDeviceNames(res.getStringArray(R.array.config_wakeGestureInputDevices));
+        wgp.setDriverProfile(loadDriverProfile(res));
+        wgp.setUseNativeReader(res.getBoolean(R.bool.config_wakeGestureNativeReader));
+        wgp.setGrabInputDevices(res.getBoolean(R.bool.config_wakeGestureGrabInputDevices));
+        wgp.setDispatchMode(res.getInteger(R.integer.config_wakeGestureDispatchMode));
+        wgp.setMaxEventAge(res.getInteger(R.integer.config_wakeGestureMaxEventAgeMs));
+        wgp.setMaxReplayAge(res.getInteger(R.integer.config_wakeGestureMaxReplayAgeMs));
+        wgp.startProcessing();
+        return wgp;
+    }
+
+    private static GestureDriverProfile loadDriverProfile(Resources res) {
+        final String[] entries = res.getStringArray(R.array.config_wakeGestureDriverProfile);
+        if (entries.length == 0) return GestureDriverProfile.DEFAULT;
+
+        try {
+            return GestureDriverProfile.parse(entries);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid driver profile, using default one", e);
+            return GestureDriverProfile.DEFAULT;
+        }
+    }
+
+    private static WakeGesture[][] loadCombos(Resources res) {
+        try {
+            return GestureSequenceRecognizer.parseCombos(
+                    res.getStringArray(R.array.config_wakeGestureCombos));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid wake gesture combos, combos disabled", e);
+            return new WakeGesture[0][];
+        }
+    }
+
     private void initWakeGestureProcessor() {
-        mWgp = WakeGestureProcessor.getInstance();
-        mWgp.registerWakeGestureListener(this);
-        mWgp.startProcessing();
+        mWgp = startProcessing(mContext);
+        mWgp.setPreDispatchListener(mSpeculativeWakeLock != null ? this : null);
+        mWgp.registerWakeGestureEventListener(this,
+                EnumSet.complementOf(EnumSet.of(WakeGesture.UNKNOWN)));
     }
 
     private void initWakeGestures() {
-        mWakeGestures = new HashMap<WakeGesture, Intent>(5);
-        mWakeGestures.put(WakeGesture.SWEEP_RIGHT, intentFromUri(mPrefs.getString(
-                WakeGestureSettings.PREF_KEY_WG_SWEEP_RIGHT, null)));
-        mWakeGestures.put(WakeGesture.SWEEP_LEFT, intentFromUri(mPrefs.getString(
-                WakeGestureSettings.PREF_KEY_WG_SWEEP_LEFT, null)));
-        mWakeGestures.put(WakeGesture.SWEEP_UP, intentFromUri(mPrefs.getString(
-                WakeGestureSettings.PREF_KEY_WG_SWEEP_UP, null)));
-        mWakeGestures.put(WakeGesture.SWEEP_DOWN, intentFromUri(mPrefs.getString(
-                WakeGestureSettings.PREF_KEY_WG_SWEEP_DOWN, null)));
-        mWakeGestures.put(WakeGesture.DOUBLETAP, intentFromUri(mPrefs.getString(
-                WakeGestureSettings.PREF_KEY_WG_DOUBLETAP, null)));
+        setAction(WakeGesture.SWEEP_RIGHT, mPrefs.getString(
+                WakeGestureSettings.PREF_KEY_WG_SWEEP_RIGHT, null));
+        setAction(WakeGesture.SWEEP_LEFT, mPrefs.getString(
+                WakeGestureSettings.PREF_KEY_WG_SWEEP_LEFT, null));
+        setAction(WakeGesture.SWEEP_UP, mPrefs.getString(
+                WakeGestureSettings.PREF_KEY_WG_SWEEP_UP, null));
+        setAction(WakeGesture.SWEEP_DOWN, mPrefs.getString(
+                WakeGestureSettings.PREF_KEY_WG_SWEEP_DOWN, null));
+        setAction(WakeGesture.DOUBLETAP, mPrefs.getString(
+                WakeGestureSettings.PREF_KEY_WG_DOUBLETAP, null));
+        for (int i = 0; i < mCombos.length; i++) {
+            setComboAction(i, mPrefs.getString(
+                    WakeGestureSettings.getComboPrefKey(mCombos[i]), null));
+        }
 
         IntentFilter intentFilter = new IntentFilter(WakeGestureSettings.ACTION_WAKE_GESTURE_CHANGED);
         intentFilter.addAction(WakeGestureSettings.ACTION_SETTINGS_CHANGED);
         mContext.registerReceiver(mBroadcastReceiver, intentFilter);
     }
 
+    @SuppressWarnings("deprecation")
+    private void initSpeculativeWake() {
+        if (!mContext.getResources().getBoolean(R.bool.config_wakeGestureSpeculativeWake)) return;
+
+        mSpeculativeWakeLock = mPm.newWakeLock(PowerManager.SCREEN_BRIGHT_WAKE_LOCK |
+                PowerManager.ACQUIRE_CAUSES_WAKEUP | PowerManager.ON_AFTER_RELEASE,
+                TAG + ":speculative");
+        mSpeculativeWakeLock.setReferenceCounted(false);
+    }
+
+    /**
+     * Compiles intent uri picked in settings into action of given gesture.
+     * Gestures may be dispatched on other than main thread, so the action array is replaced.
+     */
+    private void setAction(WakeGesture gesture, String uri) {
+        GestureAction[] actions = mActions.clone();
+        actions[gesture.ordinal()] = GestureAction.compile(mContext, intentFromUri(uri));
+        mActions = actions;
+    }
+
+    /**
+     * Compiles intent uri picked in settings into action of given combo.
+     * Combo is recognized only while an action is mapped to it.
+     */
+    private void setComboAction(int combo, String uri) {
+        GestureAction[] actions = mComboActions.clone();
+        actions[combo] = GestureAction.compile(mContext, intentFromUri(uri));
+        mComboActions = actions;
+        mSequenceRecognizer.setComboEnabled(combo, actions[combo] != null);
+    }
+
     private Intent intentFromUri(String uri) {
         if (uri == null) return null;
 
@@ -90,81 +212,78 @@ public class WakeGestureHandler implements IWakeGestureListener {
     }
 
     @Override
-    public void onWakeGesture(final WakeGesture gesture) {
-        handleIntent(mWakeGestures.get(gesture));
+    public void onWakeGestureEvent(WakeGestureEvent event) {
+        if (!mRateLimiter.accept(event.getGesture(), event.getEventTimeNanos())) {
+            // suppressed gesture runs no action, screen must not stay on for it
+            releaseSpeculativeWake();
+            return;
+        }
+        mSequenceRecognizer.onWakeGestureEvent(event);
     }
 
-    @Override
-    public void onProcessingException(Exception e) {
-        Log.d(TAG,"onProcessingException: " + e.getMessage());
-    }
+    private final IWakeGestureEventListener mGestureListener = new IWakeGestureEventListener() {
+        @Override
+        public void onWakeGestureEvent(WakeGestureEvent event) {
+            final WakeGesture gesture = event.getGesture();
+            handleAction(gesture, mActions[gesture.ordinal()], event.getEventTimeNanos());
+        }
 
-    @SuppressWarnings("deprecation")
-    private void handleIntent(Intent intent) {
-        if (intent == null || !intent.hasExtra("mode")) return;
+        @Override
+        public void onProcessingException(Exception e) {
+            WakeGestureHandler.this.onProcessingException(e);
+        }
+    };
 
-        boolean keepScreenOff = intent.getBooleanExtra(AppPickerPreference.EXTRA_KEEP_SCREEN_OFF, false);
-        mWakeLock = mPm.newWakeLock(keepScreenOff ? PowerManager.PARTIAL_WAKE_LOCK : 
-            PowerManager.SCREEN_BRIGHT_WAKE_LOCK |
-                PowerManager.ACQUIRE_CAUSES_WAKEUP | PowerManager.ON_AFTER_RELEASE,
-                TAG);
-        mWakeLock.acquire();
-
-        int mode = intent.getIntExtra("mode", AppPickerPreference.MODE_APP);
-        if (mode == AppPickerPreference.MODE_APP || mode == AppPickerPreference.MODE_SHORTCUT) {
-            mContext.startActivity(intent);
-        } else if (mode == AppPickerPreference.MODE_ACTION) {
-            executeAction(intent);
+    private final GestureSequenceRecognizer.Callback mComboCallback =
+            new GestureSequenceRecognizer.Callback() {
+        @Override
+        public void onWakeGestureCombo(int combo, WakeGestureEvent event) {
+            handleAction(event.getGesture(), mComboActions[combo], event.getEventTimeNanos());
         }
+    };
 
-        mWakeLock.release();
-        mWakeLock = null;
-    }
-
-    private void executeAction(Intent intent) {
-        String action = intent.getAction();
-        if (action.equals(AppPickerPreference.ACTION_TOGGLE_TORCH)) {
-            toggleTorch();
-        } else if (action.equals(AppPickerPreference.ACTION_MEDIA_CONTROL)) {
-            if (isMusicActive()) {
-                sendMediaButtonEvent(intent.getIntExtra(AppPickerPreference.EXTRA_MC_KEYCODE, 0));
-            }
-        } else if (action.equals(AppPickerPreference.ACTION_SCREEN_ON)) {
-            // do nothing as wake lock already did it for us
-        } else if (action.equals(AppPickerPreference.ACTION_SCREEN_DOZE)) {
-            Log.d(TAG, "broadcast: " + intent.getAction());
-            Intent intentDoze = new Intent();
-            intentDoze.setAction("com.android.systemui.doze.pulse");
-            mContext.sendBroadcast(intentDoze);
+    @Override
+    public void onWakeGesturePreDispatch(WakeGesture gesture, long eventNanos) {
+        final GestureAction action = mActions[gesture.ordinal()];
+        // gestures which may start a combo are held back and may not run their own action,
+        // suppressed gestures run none
+        if (action != null && action.getWakeLockPolicy() == GestureAction.WAKE_LOCK_SCREEN &&
+                !mSequenceRecognizer.mayStartCombo(gesture) &&
+                mRateLimiter.wouldAccept(gesture, eventNanos)) {
+            // turn screen on right away, the action takes it over once dispatched
+            mSpeculativeWakeLock.acquire(SPECULATIVE_WAKE_TIMEOUT_MS);
         }
     }
 
-    private void toggleTorch() {
-        try {
-            Intent intent = new Intent(mContext, TorchService.class);
-            intent.setAction(TorchService.ACTION_TOGGLE_TORCH);
-            mContext.startService(intent);
-        } catch (Throwable t) {
-            Log.d(TAG,"Error toggling Torch: " + t.getMessage());
-        }
+    @Override
+    public void onWakeGestureDropped(WakeGesture gesture) {
+        releaseSpeculativeWake();
     }
 
-    private void sendMediaButtonEvent(int code) {
-        Intent keyIntent = new Intent(Intent.ACTION_MEDIA_BUTTON, null);
-        keyIntent.putExtra(Intent.EXTRA_KEY_EVENT, new KeyEvent(KeyEvent.ACTION_DOWN, code));
-        mContext.sendOrderedBroadcast(keyIntent, null);
+    @Override
+    public void onProcessingException(Exception e) {
+        Log.d(TAG,"onProcessingException: " + e.getMessage());
+    }
 
-        keyIntent.putExtra(Intent.EXTRA_KEY_EVENT, new KeyEvent(KeyEvent.ACTION_UP, code));
-        mContext.sendOrderedBroadcast(keyIntent, null);
+    private void handleAction(WakeGesture gesture, GestureAction action, long startNanos) {
+        if (action != null) {
+            // wake lock is taken on this thread, so that it covers the time action is queued
+            mActionExecutor.execute(gesture, action, startNanos);
+        }
+        // action took the screen over with its own wake lock or does not need it
+        releaseSpeculativeWake();
     }
 
-    private boolean isMusicActive() {
-        final AudioManager am = (AudioManager)mContext.getSystemService(Context.AUDIO_SERVICE);
-        if (am == null) {
-            Log.w(TAG, "isMusicActive: couldn't get AudioManager reference");
-            return false;
+    private void releaseSpeculativeWake() {
+        if (mSpeculativeWakeLock != null && mSpeculativeWakeLock.isHeld()) {
+            mSpeculativeWakeLock.release();
         }
-        return am.isMusicActive();
+    }
+
+    void dump(PrintWriter pw) {
+        mWakeLockPool.dump(pw);
+        mActionExecutor.dump(pw);
+        mRateLimiter.dump(pw);
     }
 
     private BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
@@ -177,12 +296,21 @@ public class WakeGestureHandler implements IWakeGestureListener {
                     WakeGesture wg = WakeGesture.valueOf(intent.getStringExtra(
                             WakeGestureSettings.EXTRA_WAKE_GESTURE));
                     if (wg != null) {
-                        String uri = intent.getStringExtra(WakeGestureSettings.EXTRA_INTENT_URI);
-                        mWakeGestures.put(wg, intentFromUri(uri));
+                        setAction(wg, intent.getStringExtra(WakeGestureSettings.EXTRA_INTENT_URI));
                     }
                 } catch (Exception e) { 
                     Log.d(TAG,"ACTION_WAKE_GESTURE_CHANGED error: " + e.getMessage());
                 }
+            } else if (action.equals(WakeGestureSettings.ACTION_WAKE_GESTURE_CHANGED) &&
+                    intent.hasExtra(WakeGestureSettings.EXTRA_WAKE_GESTURE_COMBO)) {
+                final String key = intent.getStringExtra(
+                        WakeGestureSettings.EXTRA_WAKE_GESTURE_COMBO);
+                for (int i = 0; i < mCombos.length; i++) {
+                    if (WakeGestureSettings.getComboPrefKey(mCombos[i]).equals(key)) {
+                        setComboAction(i, intent.getStringExtra(
+                                WakeGestureSettings.EXTRA_INTENT_URI));
+                    }
+                }
             }/* else if (action.equals(WakeGestureSettings.ACTION_SETTINGS_CHANGED)) {
                 if (intent.hasExtra(WakeGestureSettings.EXTRA_POCKET_MODE)) {
                     setPocketModeEnabled(intent.getBooleanExtra(WakeGestureSettings.EXTRA_POCKET_MODE, false));
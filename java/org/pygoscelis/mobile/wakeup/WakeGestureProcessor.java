@@ -16,19 +16,32 @@
 
 package org.pygoscelis.mobile.wakeup;
 
-import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
 import android.util.Log;
 
+import dalvik.system.VMRuntime;
+
 /**
  * Wake Gesture Processor for ElementalX kernel wake gestures
  * 
@@ -36,9 +49,15 @@ import android.util.Log;
  * Processor must be instantiated within process that has permission to access input device file.
  * E.g. PhoneWindowManager init() hooked in zygote init can be used.
  * 
- * 2) register WakeGestureListener that will receive Wake Gesture events as well as error messages
+ * 2) register WakeGestureListener that will receive Wake Gesture events as well as error messages.
+ * WakeGestureEventListener also receives details of the input event behind every gesture.
+ * Slow consumers subscribe a WakeGestureSubscription instead, which calls them on their own
+ * Handler through a bounded buffer.
  * 
  * 3) call startProcessing() to initiate wake gesture processing
+ *
+ * 4) call stopProcessing() to release input device once wake gestures are no longer needed.
+ * Processing can be started again afterwards.
  * 
  * @author C3C076@XDA
  */
@@ -47,17 +66,92 @@ public class WakeGestureProcessor {
     private static final boolean DEBUG = false;
 
     private static final String CONFIG_WG_DEVICE_NAME = "wake_gesture";
-    private static final int EV_TYPE = 2; // EV_REL event type
-    private static final int EV_CODE = 11; // Wake gesture event
+    private static final int EV_SYN = 0; // EV_SYN event type
+    private static final int SYN_REPORT = 0; // end of event frame
+    private static final int SYN_DROPPED = 3; // kernel buffer overrun
+
+    private static final int DEFAULT_READ_BATCH_SIZE = 8;
+    private static final int MAX_READ_BATCH_SIZE = 64;
+
+    /** Listeners are called on Looper of thread that created processor instance */
+    public static final int DISPATCH_MAIN = 0;
+    /** Listeners are called on dedicated high priority dispatch thread */
+    public static final int DISPATCH_THREAD = 1;
+    /** Listeners are called directly on input reader thread */
+    public static final int DISPATCH_DIRECT = 2;
+
+    /** Reader thread is not running */
+    public static final int READER_STOPPED = 0;
+    /** Reader thread is reading input devices */
+    public static final int READER_RUNNING = 1;
+    /** Reader thread failed and waits before it restarts */
+    public static final int READER_BACKING_OFF = 2;
+    /** Reader thread failed too many times in a row and gave up */
+    public static final int READER_FAILED = 3;
+
+    private static final long RESTART_BACKOFF_MIN_MS = 500;
+    private static final long RESTART_BACKOFF_MAX_MS = 60000;
+    private static final int MAX_CONSECUTIVE_RESTARTS = 10;
+    // reader running at least this long is considered healthy again
+    private static final long READER_STABLE_MS = 60000;
+    // maximum time stopProcessing() waits for reader thread to close input devices
+    private static final long READER_JOIN_TIMEOUT_MS = 1000;
 
-    private static final int MSG_EVENT_RECEIVED = 1;
+    private static final long DEFAULT_MAX_EVENT_AGE_MS = 1500;
+    private static final long DEFAULT_MAX_REPLAY_AGE_MS = 1500;
+    private static final int EARLY_GESTURE_COUNT = 8;
+
+    private static final int MSG_FRAME_RECEIVED = 1;
     private static final int MSG_PROCESSING_ERROR = 2;
+    private static final int MSG_REPLAY = 3;
 
     private static Object sLock = new Object();
     private static WakeGestureProcessor sInstance;
 
     private InputEventThread mInputEventThread;
-    private List<IWakeGestureListener> mListeners;
+    // stopped reader thread that may still hold input devices, guarded by this
+    private InputEventThread mStoppingThread;
+    private final Object mListenersLock = new Object();
+    // copy-on-write snapshot, replaced under mListenersLock and read without locking
+    private volatile IWakeGestureEventListener[] mListeners = new IWakeGestureEventListener[0];
+    // gestures of every listener as bits of gesture ordinals, guarded by mListenersLock
+    private int[] mListenerMasks = new int[0];
+    // listeners interested in each gesture, indexed by gesture ordinal
+    private volatile IWakeGestureEventListener[][] mGestureListeners =
+            new IWakeGestureEventListener[WakeGesture.values().length][0];
+    // event passed to listeners, owned by the dispatching thread
+    private final WakeGestureEvent mDispatchEvent = new WakeGestureEvent();
+    private long mGestureSequence;
+    private volatile int mReadBatchSize = DEFAULT_READ_BATCH_SIZE;
+    private volatile String[] mInputDeviceNames = new String[] { CONFIG_WG_DEVICE_NAME };
+    private volatile GestureDriverProfile mDriverProfile = GestureDriverProfile.DEFAULT;
+    private volatile boolean mUseNativeReader;
+    private volatile boolean mGrabInputDevices;
+    private volatile long mMaxEventAgeNanos = DEFAULT_MAX_EVENT_AGE_MS * 1000000L;
+    private final AtomicLong mStaleFrameCount = new AtomicLong();
+    private volatile IWakeGesturePreDispatchListener mPreDispatchListener;
+
+    // ring of gestures dispatched while no listener was registered
+    private final Object mEarlyGesturesLock = new Object();
+    private final WakeGestureEvent[] mEarlyGestures = new WakeGestureEvent[EARLY_GESTURE_COUNT];
+    private int mEarlyGestureHead;
+    private int mEarlyGestureCount;
+    private volatile long mMaxReplayAgeNanos = DEFAULT_MAX_REPLAY_AGE_MS * 1000000L;
+    // early gestures handed over to first listener, delivered by dispatching thread ahead of
+    // live gestures, guarded by mEarlyGesturesLock
+    private volatile boolean mReplayPending;
+    private IWakeGestureEventListener mReplayListener;
+    private WakeGestureEvent[] mReplayEvents;
+    private int mReplayCount;
+    private int mDispatchMode = DISPATCH_MAIN;
+    private Handler mMainHandler;
+    private HandlerThread mDispatchThread;
+    // handler of running reader thread, null when dispatching directly, guarded by this
+    private Handler mDispatchHandler;
+    private int mReaderState = READER_STOPPED;
+    private int mRestartCount;
+    private Exception mLastError;
+    private long mLastErrorTime;
 
     /**
      * Creates or gets existing instance of WakeGestureProcessor
@@ -73,8 +167,10 @@ public class WakeGestureProcessor {
     }
 
     private WakeGestureProcessor() {
-        mInputEventThread = new InputEventThread();
-        mListeners = new ArrayList<IWakeGestureListener>();
+        mMainHandler = new Handler(mHandlerCallback);
+        for (int i = 0; i < EARLY_GESTURE_COUNT; i++) {
+            mEarlyGestures[i] = new WakeGestureEvent();
+        }
     }
 
     /**
@@ -86,28 +182,268 @@ public class WakeGestureProcessor {
         if (!WakeGesture.isWakeGesture())
             throw new UnsupportedOperationException("Device does not support wake gestures");
 
-        if (!mInputEventThread.isAlive()) {
+        // previous reader must not overlap with the new one on the same input devices
+        if (mStoppingThread != null) {
+            awaitReaderExit(mStoppingThread);
+        }
+        if (mInputEventThread == null || !mInputEventThread.isAlive()) {
+            mDispatchHandler = getDispatchHandler();
+            mInputEventThread = new InputEventThread(mDispatchHandler);
+            mReaderState = READER_RUNNING;
+            if (mReplayPending) {
+                postReplay(mDispatchHandler);
+            }
             try {
                 mInputEventThread.start();
             } catch (IllegalThreadStateException e) {
+                mInputEventThread = null;
                 throw new IllegalStateException("Error in startProcessing", e);
             }
         }
     }
 
+    /**
+     * Stops processing of wake gestures and closes input device.
+     * Waits for reader thread to close input devices, at most READER_JOIN_TIMEOUT_MS.
+     * Does nothing in case processing is not running.
+     */
+    public synchronized void stopProcessing() {
+        if (mInputEventThread != null) {
+            // interrupting closes the channel and wakes up the reader blocked in read()
+            mInputEventThread.interrupt();
+            mStoppingThread = mInputEventThread;
+            mInputEventThread = null;
+            mDispatchHandler = null;
+            mReaderState = READER_STOPPED;
+            awaitReaderExit(mStoppingThread);
+        }
+        if (mDispatchThread != null) {
+            mDispatchThread.quitSafely();
+            mDispatchThread = null;
+        }
+    }
+
+    /**
+     * Waits for stopped reader thread to exit, at most READER_JOIN_TIMEOUT_MS.
+     * Processor lock is released while waiting, so that the thread can still update its health.
+     * Must be called with processor lock held.
+     */
+    private void awaitReaderExit(InputEventThread thread) {
+        // stopped by a listener called directly on reader thread, it exits once listener returns
+        if (thread == Thread.currentThread()) return;
+
+        final long deadline = SystemClock.elapsedRealtime() + READER_JOIN_TIMEOUT_MS;
+        long remaining = READER_JOIN_TIMEOUT_MS;
+        boolean interrupted = false;
+        while (!thread.mExited && remaining > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            remaining = deadline - SystemClock.elapsedRealtime();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (thread.mExited) {
+            if (mStoppingThread == thread) {
+                mStoppingThread = null;
+            }
+        } else {
+            Log.w(TAG, "Reader thread did not stop within " + READER_JOIN_TIMEOUT_MS + "ms");
+        }
+    }
+
+    /**
+     * @return snapshot of reader thread health
+     */
+    public synchronized ReaderHealth getReaderHealth() {
+        return new ReaderHealth(mReaderState, mRestartCount, mLastError, mLastErrorTime);
+    }
+
+    /**
+     * Updates reader health in case the thread is the current reader thread
+     * @return false in case the thread was replaced or stopped meanwhile
+     */
+    private synchronized boolean updateReaderHealth(InputEventThread thread, int state,
+            Exception error) {
+        if (mInputEventThread != thread) return false;
+
+        if (state == READER_BACKING_OFF) {
+            mRestartCount++;
+        }
+        if (error != null) {
+            mLastError = error;
+            mLastErrorTime = System.currentTimeMillis();
+        }
+        mReaderState = state;
+        return true;
+    }
+
+    /**
+     * Sets thread on which listeners are notified.
+     * New value is applied next time processing starts.
+     * @param mode one of DISPATCH_MAIN, DISPATCH_THREAD or DISPATCH_DIRECT
+     * @throws IllegalArgumentException in case mode is unknown
+     */
+    public synchronized void setDispatchMode(int mode) {
+        if (mode != DISPATCH_MAIN && mode != DISPATCH_THREAD && mode != DISPATCH_DIRECT)
+            throw new IllegalArgumentException("Unknown dispatch mode: " + mode);
+
+        mDispatchMode = mode;
+    }
+
+    /**
+     * @return handler for dispatch mode in use or null when dispatching directly
+     */
+    private Handler getDispatchHandler() {
+        switch (mDispatchMode) {
+            case DISPATCH_THREAD:
+                if (mDispatchThread == null) {
+                    mDispatchThread = new HandlerThread(TAG,
+                            Process.THREAD_PRIORITY_URGENT_DISPLAY);
+                    mDispatchThread.start();
+                }
+                return new Handler(mDispatchThread.getLooper(), mHandlerCallback);
+            case DISPATCH_DIRECT:
+                return null;
+            default:
+                return mMainHandler;
+        }
+    }
+
+    /**
+     * @return true if wake gestures are being processed
+     */
+    public synchronized boolean isProcessing() {
+        return mInputEventThread != null && mInputEventThread.isAlive();
+    }
+
+    /**
+     * Sets how many input events reader thread requests from input device with single read.
+     * New value is applied next time processing starts.
+     * @param batchSize number of events, 1 reads events one by one
+     * @throws IllegalArgumentException in case batch size is out of range
+     */
+    public void setReadBatchSize(int batchSize) {
+        if (batchSize < 1 || batchSize > MAX_READ_BATCH_SIZE)
+            throw new IllegalArgumentException("Read batch size must be between 1 and " +
+                    MAX_READ_BATCH_SIZE);
+
+        mReadBatchSize = batchSize;
+    }
+
+    /**
+     * Sets names of input devices reporting wake gestures. All input devices matching
+     * one of the names are read by single reader thread.
+     * New value is applied next time processing starts.
+     * @param names input device names as found in sysfs
+     * @throws IllegalArgumentException in case no name is given
+     */
+    public void setInputDeviceNames(String... names) {
+        if (names == null || names.length == 0)
+            throw new IllegalArgumentException("At least one input device name is required");
+
+        mInputDeviceNames = names.clone();
+    }
+
+    /**
+     * Sets profile used to classify input events as wake gestures.
+     * Reader thread drops every event the profile does not accept before it is decoded or posted.
+     * New value is applied next time processing starts.
+     * @param profile driver profile, {@link GestureDriverProfile#DEFAULT} by default
+     */
+    public void setDriverProfile(GestureDriverProfile profile) {
+        if (profile == null)
+            throw new IllegalArgumentException("Driver profile cannot be null");
+
+        mDriverProfile = profile;
+    }
+
+    /**
+     * Sets whether input devices are read by native reader, which waits for all of them with
+     * epoll and hands over complete frames in batches. Java reader is used in case native
+     * library is not available.
+     * New value is applied next time processing starts.
+     */
+    public void setUseNativeReader(boolean useNativeReader) {
+        mUseNativeReader = useNativeReader;
+    }
+
+    /**
+     * Sets whether native reader grabs input devices, so that no other process receives
+     * their events. Has no effect on Java reader.
+     * New value is applied next time processing starts.
+     */
+    public void setGrabInputDevices(boolean grab) {
+        mGrabInputDevices = grab;
+    }
+
+    /**
+     * Sets maximum age of wake gesture events. Older events are dropped when they are about
+     * to be dispatched, e.g. after reader or dispatch thread stalled.
+     * @param maxAgeMs maximum age in milliseconds, 0 disables the check
+     */
+    public void setMaxEventAge(long maxAgeMs) {
+        if (maxAgeMs < 0)
+            throw new IllegalArgumentException("Maximum event age cannot be negative");
+
+        mMaxEventAgeNanos = maxAgeMs * 1000000L;
+    }
+
+    /**
+     * @return number of event frames dropped because they were older than maximum event age
+     */
+    public long getStaleFrameCount() {
+        return mStaleFrameCount.get();
+    }
+
+    /**
+     * Sets listener called on reader thread as soon as a wake gesture is decoded.
+     * Stale gestures are not reported. Listener is told about reported gestures which are
+     * dropped before dispatch.
+     * @param listener listener or null to remove it
+     */
+    public void setPreDispatchListener(IWakeGesturePreDispatchListener listener) {
+        mPreDispatchListener = listener;
+    }
+
+    /**
+     * Sets maximum age of gestures that were dispatched before any listener was registered
+     * and are replayed to the first registered listener. Replay is delivered on dispatching
+     * thread ahead of live gestures. When dispatching directly, it is delivered on reader
+     * thread ahead of the next frame. Gestures older than this or than maximum event age when
+     * the replay is delivered are not replayed, so a replay waiting for the next frame expires.
+     * @param maxAgeMs maximum age in milliseconds, 0 disables replay
+     */
+    public void setMaxReplayAge(long maxAgeMs) {
+        if (maxAgeMs < 0)
+            throw new IllegalArgumentException("Maximum replay age cannot be negative");
+
+        mMaxReplayAgeNanos = maxAgeMs * 1000000L;
+    }
+
     /**
      * Registers listener that will receive Wake Gestures and error messages
      * @param listener that implements WakeGestureListener interface
      */
     public void registerWakeGestureListener(IWakeGestureListener listener) {
+        registerWakeGestureListener(listener, EnumSet.allOf(WakeGesture.class));
+    }
+
+    /**
+     * Registers listener that will receive given Wake Gestures and error messages
+     * @param listener that implements WakeGestureListener interface
+     * @param gestures gestures the listener is interested in
+     */
+    public void registerWakeGestureListener(IWakeGestureListener listener,
+            EnumSet<WakeGesture> gestures) {
         if (listener == null)
             throw new IllegalArgumentException("WakeGestureListener cannot be null");
 
-        synchronized (mListeners) {
-            if (!mListeners.contains(listener)) {
-                mListeners.add(listener);
-            }
-        }
+        registerWakeGestureEventListener(new WakeGestureListenerAdapter(listener), gestures);
     }
 
     /**
@@ -118,170 +454,893 @@ public class WakeGestureProcessor {
         if (listener == null)
             throw new IllegalArgumentException("WakeGestureListener cannot be null");
 
-        synchronized (mListeners) {
-            if (mListeners.contains(listener)) {
-                mListeners.remove(listener);
+        unregisterWakeGestureEventListener(new WakeGestureListenerAdapter(listener));
+    }
+
+    /**
+     * Registers listener that will receive Wake Gesture events with full details and
+     * error messages
+     * @param listener that implements WakeGestureEventListener interface
+     */
+    public void registerWakeGestureEventListener(IWakeGestureEventListener listener) {
+        registerWakeGestureEventListener(listener, EnumSet.allOf(WakeGesture.class));
+    }
+
+    /**
+     * Registers listener that will receive events of given Wake Gestures and error messages.
+     * Registering already registered listener replaces its gestures.
+     * @param listener that implements WakeGestureEventListener interface
+     * @param gestures gestures the listener is interested in
+     */
+    public void registerWakeGestureEventListener(IWakeGestureEventListener listener,
+            EnumSet<WakeGesture> gestures) {
+        if (listener == null)
+            throw new IllegalArgumentException("WakeGestureEventListener cannot be null");
+        if (gestures == null)
+            throw new IllegalArgumentException("Gestures cannot be null");
+
+        int mask = 0;
+        for (WakeGesture gesture : gestures) {
+            mask |= 1 << gesture.ordinal();
+        }
+
+        boolean first = false;
+        synchronized (mListenersLock) {
+            final IWakeGestureEventListener[] listeners = mListeners;
+            final int index = indexOfListener(listeners, listener);
+            if (index >= 0) {
+                int[] newMasks = mListenerMasks.clone();
+                newMasks[index] = mask;
+                updateListeners(listeners, newMasks);
+            } else {
+                IWakeGestureEventListener[] newListeners =
+                        new IWakeGestureEventListener[listeners.length + 1];
+                System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+                newListeners[listeners.length] = listener;
+                int[] newMasks = new int[listeners.length + 1];
+                System.arraycopy(mListenerMasks, 0, newMasks, 0, listeners.length);
+                newMasks[listeners.length] = mask;
+                if (listeners.length == 0) {
+                    // early gestures are handed over together with publishing the first
+                    // listener, so that none is stored once the replay was prepared
+                    synchronized (mEarlyGesturesLock) {
+                        first = prepareReplay(listener, mask);
+                        updateListeners(newListeners, newMasks);
+                    }
+                } else {
+                    updateListeners(newListeners, newMasks);
+                }
             }
         }
+
+        if (first) {
+            final Handler handler;
+            synchronized (this) {
+                handler = mDispatchHandler;
+            }
+            postReplay(handler);
+        }
+    }
+
+    /**
+     * Unregisters existing Wake Gesture event listener
+     * @param listener that was previously registered via registerWakeGestureEventListener
+     */
+    public void unregisterWakeGestureEventListener(IWakeGestureEventListener listener) {
+        if (listener == null)
+            throw new IllegalArgumentException("WakeGestureEventListener cannot be null");
+
+        synchronized (mListenersLock) {
+            final IWakeGestureEventListener[] listeners = mListeners;
+            final int index = indexOfListener(listeners, listener);
+            if (index >= 0) {
+                final int tail = listeners.length - index - 1;
+                IWakeGestureEventListener[] newListeners =
+                        new IWakeGestureEventListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, newListeners, 0, index);
+                System.arraycopy(listeners, index + 1, newListeners, index, tail);
+                int[] newMasks = new int[listeners.length - 1];
+                System.arraycopy(mListenerMasks, 0, newMasks, 0, index);
+                System.arraycopy(mListenerMasks, index + 1, newMasks, index, tail);
+                updateListeners(newListeners, newMasks);
+            }
+        }
+    }
+
+    /**
+     * Subscribes to stream of all Wake Gestures
+     * @param subscription subscription with operators already set
+     */
+    public void subscribe(WakeGestureSubscription subscription) {
+        subscribe(subscription, EnumSet.allOf(WakeGesture.class));
+    }
+
+    /**
+     * Subscribes to stream of given Wake Gestures. Subscriber is called on its own handler
+     * through a bounded buffer, so it does not delay other listeners.
+     * @param subscription subscription with operators already set
+     * @param gestures gestures the subscriber is interested in
+     */
+    public void subscribe(WakeGestureSubscription subscription, EnumSet<WakeGesture> gestures) {
+        if (subscription == null)
+            throw new IllegalArgumentException("WakeGestureSubscription cannot be null");
+
+        registerWakeGestureEventListener(subscription.mListener, gestures);
+    }
+
+    /**
+     * Cancels subscription, gestures waiting for delivery are dropped
+     * @param subscription that was previously passed to subscribe
+     */
+    public void unsubscribe(WakeGestureSubscription subscription) {
+        if (subscription == null)
+            throw new IllegalArgumentException("WakeGestureSubscription cannot be null");
+
+        unregisterWakeGestureEventListener(subscription.mListener);
+        subscription.cancel();
+    }
+
+    /**
+     * Publishes new listeners together with per gesture listener arrays.
+     * Must be called with mListenersLock held.
+     */
+    private void updateListeners(IWakeGestureEventListener[] listeners, int[] masks) {
+        final int gestureCount = WakeGesture.values().length;
+        IWakeGestureEventListener[][] gestureListeners = new IWakeGestureEventListener[gestureCount][];
+        for (int g = 0; g < gestureCount; g++) {
+            int count = 0;
+            for (int i = 0; i < listeners.length; i++) {
+                if ((masks[i] & (1 << g)) != 0) count++;
+            }
+            gestureListeners[g] = new IWakeGestureEventListener[count];
+            count = 0;
+            for (int i = 0; i < listeners.length; i++) {
+                if ((masks[i] & (1 << g)) != 0) gestureListeners[g][count++] = listeners[i];
+            }
+        }
+
+        mListenerMasks = masks;
+        mGestureListeners = gestureListeners;
+        mListeners = listeners;
+    }
+
+    /**
+     * Keeps gesture event dispatched while no listener is registered
+     * @return false in case a listener got registered meanwhile and event was not kept
+     */
+    private boolean storeEarlyGesture(WakeGestureEvent event) {
+        synchronized (mEarlyGesturesLock) {
+            if (mListeners.length > 0) return false;
+
+            final int index = (mEarlyGestureHead + mEarlyGestureCount) % EARLY_GESTURE_COUNT;
+            mEarlyGestures[index].copyFrom(event);
+            if (mEarlyGestureCount < EARLY_GESTURE_COUNT) {
+                mEarlyGestureCount++;
+            } else {
+                mEarlyGestureHead = (mEarlyGestureHead + 1) % EARLY_GESTURE_COUNT;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Takes early gestures that are not too old for replay to listener.
+     * Must be called with mEarlyGesturesLock held.
+     * @return true in case there is something to replay
+     */
+    private boolean prepareReplay(IWakeGestureEventListener listener, int mask) {
+        final WakeGestureEvent[] replay = new WakeGestureEvent[EARLY_GESTURE_COUNT];
+        int count = 0;
+
+        final long now = SystemClock.elapsedRealtimeNanos();
+        final long maxAgeNanos = getReplayAgeLimitNanos();
+        for (int i = 0; i < mEarlyGestureCount; i++) {
+            final WakeGestureEvent event =
+                    mEarlyGestures[(mEarlyGestureHead + i) % EARLY_GESTURE_COUNT];
+            if (now - event.eventNanos <= maxAgeNanos &&
+                    (mask & (1 << event.gesture.ordinal())) != 0) {
+                replay[count] = new WakeGestureEvent();
+                replay[count].copyFrom(event);
+                count++;
+            }
+        }
+        mEarlyGestureHead = 0;
+        mEarlyGestureCount = 0;
+        if (count == 0) return false;
+
+        mReplayListener = listener;
+        mReplayEvents = replay;
+        mReplayCount = count;
+        mReplayPending = true;
+        return true;
+    }
+
+    /**
+     * Posts replay ahead of frames already queued, which are newer than early gestures
+     * @param handler dispatch handler or null, in which case replay waits for the next frame
+     */
+    private void postReplay(Handler handler) {
+        if (handler != null) {
+            handler.sendMessageAtFrontOfQueue(Message.obtain(handler, MSG_REPLAY));
+        }
     }
 
-    private void notifyWakeGestureListeners(WakeGesture gesture) {
-        synchronized (mListeners) {
-            for (IWakeGestureListener l : mListeners) {
-                l.onWakeGesture(gesture);
+    /**
+     * Delivers pending replay, called on dispatching thread only
+     */
+    private void deliverReplay() {
+        final IWakeGestureEventListener listener;
+        final WakeGestureEvent[] replay;
+        final int count;
+        synchronized (mEarlyGesturesLock) {
+            if (!mReplayPending) return;
+            listener = mReplayListener;
+            replay = mReplayEvents;
+            count = mReplayCount;
+            mReplayPending = false;
+            mReplayListener = null;
+            mReplayEvents = null;
+            mReplayCount = 0;
+        }
+
+        // listener may have been unregistered meanwhile
+        if (indexOfListener(mListeners, listener) < 0) return;
+        // replay may have waited, e.g. for the next frame when dispatching directly; expired
+        // gestures were reported dropped to pre-dispatch listener when they were kept already
+        final long now = SystemClock.elapsedRealtimeNanos();
+        final long maxAgeNanos = getReplayAgeLimitNanos();
+        for (int i = 0; i < count; i++) {
+            if (now - replay[i].eventNanos > maxAgeNanos) {
+                if (DEBUG) Log.d(TAG, "Early gesture expired " + replay[i]);
+                continue;
             }
+            if (DEBUG) Log.d(TAG, "Replaying early gesture " + replay[i]);
+            listener.onWakeGestureEvent(replay[i]);
+        }
+    }
+
+    /**
+     * @return maximum age of replayed gestures, never above maximum event age so that a
+     * replayed gesture is not run when the same gesture dispatched live would be stale
+     */
+    private long getReplayAgeLimitNanos() {
+        final long replayAgeNanos = mMaxReplayAgeNanos;
+        final long eventAgeNanos = mMaxEventAgeNanos;
+        return eventAgeNanos > 0 ? Math.min(replayAgeNanos, eventAgeNanos) : replayAgeNanos;
+    }
+
+    /**
+     * Picks input_event layout of the process ABI. os.arch cannot be used, it names the kernel
+     * architecture, e.g. aarch64 for a 32-bit process on arm64.
+     */
+    private static EventLayout detectEventLayout() {
+        final int size = NativeInputReader.getInputEventSize();
+        if (size != 0) {
+            return size == EventLayout.LAYOUT_64.size ?
+                    EventLayout.LAYOUT_64 : EventLayout.LAYOUT_32;
+        }
+        return VMRuntime.getRuntime().is64Bit() ? EventLayout.LAYOUT_64 : EventLayout.LAYOUT_32;
+    }
+
+    private static int indexOfListener(IWakeGestureEventListener[] listeners,
+            IWakeGestureEventListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i].equals(listener)) return i;
+        }
+        return -1;
+    }
+
+    // Listeners are notified from a snapshot so they may (un)register from within the callback
+    private void notifyWakeGestureListeners(WakeGestureEvent event) {
+        final IWakeGestureEventListener[] listeners =
+                mGestureListeners[event.gesture.ordinal()];
+        // replay is prepared before its listener is published, so a listener seen here
+        // gets older replayed gestures first
+        if (mReplayPending) {
+            deliverReplay();
+        }
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onWakeGestureEvent(event);
         }
     }
 
     private void notifyWakeGestureListeners(Exception e) {
-        synchronized (mListeners) {
-            for (IWakeGestureListener l : mListeners) {
-                l.onProcessingException(e);
+        final IWakeGestureEventListener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onProcessingException(e);
+        }
+    }
+
+    private void handleFrame(EventFrame frame) {
+        if (DEBUG) {
+            Log.d(TAG, "MSG_FRAME_RECEIVED: source=" + frame.source +
+                "; sec=" + frame.timeSec + "; usec=" + frame.timeUsec +
+                "; events=" + frame.count);
+        }
+        final long maxAgeNanos = mMaxEventAgeNanos;
+        if (maxAgeNanos > 0) {
+            // kernel delay was measured when the frame was read, which keeps age on the
+            // monotonic clock from then on
+            final long ageNanos = SystemClock.elapsedRealtimeNanos() - frame.readNanos +
+                    frame.kernelDelayUs * 1000L;
+            if (ageNanos > maxAgeNanos) {
+                mStaleFrameCount.incrementAndGet();
+                Log.w(TAG, "Dropping stale wake gesture frame: age=" + ageNanos / 1000000L + "ms");
+                for (int i = 0; i < frame.count; i++) {
+                    notifyGestureDropped(frame.gestures[i]);
+                }
+                frame.recycle();
+                return;
             }
         }
+        final GestureLatencyTracker latencyTracker = GestureLatencyTracker.getInstance();
+        final WakeGestureEvent event = mDispatchEvent;
+        for (int i = 0; i < frame.count; i++) {
+            event.gesture = frame.gestures[i];
+            event.type = frame.types[i];
+            event.code = frame.codes[i];
+            event.value = frame.values[i];
+            event.source = frame.source;
+            event.sourcePath = frame.sourcePath;
+            event.sequence = ++mGestureSequence;
+            event.timeSec = frame.timeSec;
+            event.timeUsec = frame.timeUsec;
+            event.eventNanos = frame.readNanos - frame.kernelDelayUs * 1000L;
+            event.readNanos = frame.readNanos;
+
+            if (mListeners.length == 0 && storeEarlyGesture(event)) {
+                // replay does not run pre-dispatch work again
+                notifyGestureDropped(event.gesture);
+                continue;
+            }
+
+            latencyTracker.onDispatch(event.gesture, frame.kernelDelayUs, frame.readNanos);
+            notifyWakeGestureListeners(event);
+        }
+        frame.recycle();
     }
 
-    private Handler mHandler = new Handler() {
+    private void notifyGestureDropped(WakeGesture gesture) {
+        final IWakeGesturePreDispatchListener listener = mPreDispatchListener;
+        if (listener != null) {
+            listener.onWakeGestureDropped(gesture);
+        }
+    }
+
+    private Handler.Callback mHandlerCallback = new Handler.Callback() {
         @Override
-        public void handleMessage(Message msg) {
+        public boolean handleMessage(Message msg) {
             switch (msg.what) {
-                case MSG_EVENT_RECEIVED:
-                    EventData data = (EventData) msg.obj;
-                    if (DEBUG) {
-                        Log.d(TAG, "MSG_EVENT_RECEIVED: sec=" + data.timeSec +
-                            "; usec=" + data.timeUsec + "; type=" + data.type +
-                            "; code=" + data.code + "; value=" + data.value);
-                    }
-                    if (data.type == EV_TYPE && data.code == EV_CODE) {
-                        notifyWakeGestureListeners(WakeGesture.createFromId(data.value));
-                    }
-                    break;
+                case MSG_FRAME_RECEIVED:
+                    handleFrame((EventFrame) msg.obj);
+                    return true;
                 case MSG_PROCESSING_ERROR:
                     notifyWakeGestureListeners((Exception) msg.obj);
-                    break;
+                    return true;
+                case MSG_REPLAY:
+                    deliverReplay();
+                    return true;
             }
+            return false;
         }
     };
 
     private class InputEventThread extends Thread {
+        private final String[] mDeviceNames = mInputDeviceNames;
+        private final GestureDriverProfile mProfile = mDriverProfile;
+        private final boolean mUseNative = mUseNativeReader;
+        private final boolean mGrab = mGrabInputDevices;
+        private final Handler mHandler;
+        private FileDescriptor[] mWakePipe;
+        private NativeInputReader mNativeReader;
+        private String[] mDevicePaths;
+        // frame being assembled and SYN_DROPPED state of every input device
+        private EventFrame[] mFrames;
+        private boolean[] mDropping;
+        // input device stamps events with CLOCK_MONOTONIC instead of wall clock
+        private boolean[] mMonotonic;
+        // set once input devices are closed and thread is about to exit, guarded by processor
+        boolean mExited;
+
+        /**
+         * @param handler handler to post events to or null to notify listeners directly
+         */
+        InputEventThread(Handler handler) {
+            mHandler = handler;
+        }
+
         @Override
         public void run() {
             if (DEBUG) Log.d(TAG, "Thread starting");
 
-            BufferedInputStream inputStream = null;
-            final byte[] event = new byte[16];
-
             try {
-                File f = new File(getInputDevicePath());
-                inputStream = new BufferedInputStream(new FileInputStream(f));
+                readWithRestarts();
+            } finally {
+                synchronized (WakeGestureProcessor.this) {
+                    mExited = true;
+                    WakeGestureProcessor.this.notifyAll();
+                }
+            }
 
-                while (!isInterrupted()) {
-                    if (inputStream.read(event) > 0) {
-                        sendEventMessage(event);
+            if (DEBUG) Log.d(TAG, "Thread finishing");
+        }
+
+        private void readWithRestarts() {
+            int failures = 0;
+            while (!isInterrupted()) {
+                final long startTime = SystemClock.elapsedRealtime();
+                try {
+                    read();
+                    break;
+                } catch (ClosedByInterruptException e) {
+                    break;
+                } catch (Exception e) {
+                    sendExceptionMessage(e);
+                    if (isInterrupted()) break;
+
+                    if (SystemClock.elapsedRealtime() - startTime >= READER_STABLE_MS) {
+                        failures = 0;
+                    }
+                    if (failures >= MAX_CONSECUTIVE_RESTARTS) {
+                        Log.e(TAG, "Giving up after " + failures + " restarts", e);
+                        updateReaderHealth(this, READER_FAILED, e);
+                        return;
                     }
+                    if (!updateReaderHealth(this, READER_BACKING_OFF, e)) break;
+
+                    // device may have been re-created with another node
+                    InputDeviceRegistry.getInstance().invalidate();
+                    final long backoff = Math.min(RESTART_BACKOFF_MIN_MS << failures,
+                            RESTART_BACKOFF_MAX_MS);
+                    failures++;
+                    Log.w(TAG, "Restarting in " + backoff + "ms: " + e.getMessage());
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                    if (!updateReaderHealth(this, READER_RUNNING, null)) break;
                 }
+            }
+        }
 
-                if (DEBUG) Log.d(TAG, "Thread finishing");
-            } catch (Exception e) {
-                sendExceptionMessage(e);
-            } finally {
-                if (inputStream != null) {
+        private void read() throws IOException, ErrnoException {
+            List<String> devicePaths = getInputDevicePaths();
+            mDevicePaths = devicePaths.toArray(new String[devicePaths.size()]);
+            mFrames = new EventFrame[devicePaths.size()];
+            mDropping = new boolean[devicePaths.size()];
+            mMonotonic = new boolean[devicePaths.size()];
+            if (mUseNative && NativeInputReader.isAvailable()) {
+                readNative();
+                return;
+            }
+
+            EventLayout layout = detectEventLayout();
+            if (DEBUG) Log.d(TAG, "input_event size: " + layout.size);
+
+            if (devicePaths.size() == 1) {
+                readSingle(devicePaths.get(0), layout);
+            } else {
+                readMultiplexed(devicePaths, layout);
+            }
+        }
+
+        @Override
+        public void interrupt() {
+            super.interrupt();
+            // wake up poll() of multiplexed reader or epoll of native reader
+            synchronized (this) {
+                if (mWakePipe != null) {
                     try {
-                        inputStream.close();
-                    } catch (IOException e) { }
-                    inputStream = null;
+                        Os.write(mWakePipe[1], new byte[1], 0, 1);
+                    } catch (Exception e) { }
+                }
+                if (mNativeReader != null) {
+                    mNativeReader.wakeUp();
                 }
             }
         }
 
-        private String getInputDevicePath() {
-            File[] inputDirs = new File("/sys/devices/virtual/input").listFiles();
-            if (inputDirs == null)
-                throw new UnsupportedOperationException("Unable to determine input device path");
+        /**
+         * Reads frames of all input devices assembled by native reader.
+         * Interrupting the thread wakes the reader up.
+         */
+        private void readNative() throws IOException {
+            final NativeInputReader reader = new NativeInputReader(mDevicePaths,
+                    mProfile.getAcceptedEvents(), mGrab);
+            final ByteBuffer frames = NativeInputReader.allocateFrameBuffer(mDevicePaths.length);
 
-            String eventName = null;
-            for (File inputDir : inputDirs) {
-                if (!inputDir.isDirectory()) continue;
-                File[] inputFiles = inputDir.listFiles();
-                if (inputFiles == null) continue;
-                boolean isWakeGesture = false;
-                eventName = null;
-                for (File inputFile : inputFiles) {
-                    if (inputFile.getName().startsWith("event")) {
-                        eventName = inputFile.getName();
+            try {
+                synchronized (this) {
+                    mNativeReader = reader;
+                }
+                for (int i = 0; i < mDevicePaths.length; i++) {
+                    mMonotonic[i] = reader.usesMonotonicClock(i);
+                }
+                while (!isInterrupted()) {
+                    final int size = reader.read(frames);
+                    frames.clear();
+                    frames.limit(size);
+                    sendNativeFrames(frames);
+                }
+            } finally {
+                synchronized (this) {
+                    mNativeReader = null;
+                }
+                reader.close();
+            }
+        }
+
+        /**
+         * Reads events of single input device by blocking on its channel.
+         * Interrupting the thread closes the channel which ends the read.
+         */
+        private void readSingle(String devicePath, EventLayout layout) throws IOException {
+            FileInputStream inputStream = null;
+
+            try {
+                inputStream = new FileInputStream(new File(devicePath));
+                mMonotonic[0] = NativeInputReader.setMonotonicClock(inputStream.getFD());
+                FileChannel channel = inputStream.getChannel();
+                ByteBuffer events = allocateEventBuffer(layout);
+
+                while (!isInterrupted()) {
+                    if (channel.read(events) < 0)
+                        throw new EOFException("Input device closed: " + devicePath);
+                    sendEvents(events, layout, 0);
+                }
+            } finally {
+                closeQuietly(inputStream);
+            }
+        }
+
+        /**
+         * Reads events of several input devices from this single thread by polling all of them
+         * together with a wake up pipe used to stop the thread.
+         * Events are tagged with index of their device in devicePaths.
+         */
+        private void readMultiplexed(List<String> devicePaths, EventLayout layout)
+                throws IOException, ErrnoException {
+            final int count = devicePaths.size();
+            final FileInputStream[] inputStreams = new FileInputStream[count];
+            final FileChannel[] channels = new FileChannel[count];
+            final ByteBuffer[] buffers = new ByteBuffer[count];
+            final StructPollfd[] pollFds = new StructPollfd[count + 1];
+
+            try {
+                synchronized (this) {
+                    mWakePipe = Os.pipe();
+                }
+                for (int i = 0; i < count; i++) {
+                    inputStreams[i] = new FileInputStream(new File(devicePaths.get(i)));
+                    mMonotonic[i] = NativeInputReader.setMonotonicClock(inputStreams[i].getFD());
+                    channels[i] = inputStreams[i].getChannel();
+                    buffers[i] = allocateEventBuffer(layout);
+                    pollFds[i] = createPollFd(inputStreams[i].getFD());
+                }
+                pollFds[count] = createPollFd(mWakePipe[0]);
+
+                while (!isInterrupted()) {
+                    try {
+                        Os.poll(pollFds, -1);
+                    } catch (ErrnoException e) {
+                        if (e.errno == OsConstants.EINTR) continue;
+                        throw e;
                     }
-                    if (inputFile.getName().equals("name")) {
-                        String line = FileUtils.readOneLine(inputFile.getAbsolutePath());
-                        if (line != null && CONFIG_WG_DEVICE_NAME.equals(line)) {
-                            isWakeGesture = true;
+
+                    if (pollFds[count].revents != 0) break;
+
+                    for (int i = 0; i < count; i++) {
+                        final short revents = pollFds[i].revents;
+                        if ((revents & OsConstants.POLLIN) != 0) {
+                            if (channels[i].read(buffers[i]) < 0)
+                                throw new EOFException("Input device closed: " + devicePaths.get(i));
+                            sendEvents(buffers[i], layout, i);
+                        } else if (revents != 0) {
+                            throw new IOException("Error polling input device: " + devicePaths.get(i));
+                        }
+                    }
+                }
+            } finally {
+                for (FileInputStream inputStream : inputStreams) {
+                    closeQuietly(inputStream);
+                }
+                synchronized (this) {
+                    if (mWakePipe != null) {
+                        for (FileDescriptor fd : mWakePipe) {
+                            try {
+                                Os.close(fd);
+                            } catch (ErrnoException e) { }
                         }
+                        mWakePipe = null;
                     }
                 }
-                if (isWakeGesture) break;
             }
+        }
+
+        private ByteBuffer allocateEventBuffer(EventLayout layout) {
+            return ByteBuffer.allocateDirect(mReadBatchSize * layout.size)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private StructPollfd createPollFd(FileDescriptor fd) {
+            StructPollfd pollFd = new StructPollfd();
+            pollFd.fd = fd;
+            pollFd.events = (short) OsConstants.POLLIN;
+            return pollFd;
+        }
+
+        private void closeQuietly(FileInputStream inputStream) {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) { }
+            }
+        }
 
-            if (eventName == null)
+        private List<String> getInputDevicePaths() {
+            List<String> devicePaths = InputDeviceRegistry.getInstance().getDevicePaths(mDeviceNames);
+            if (devicePaths.isEmpty())
                 throw new UnsupportedOperationException("Unable to determine input device path");
 
-            String devicePath = String.format("/dev/input/%s", eventName);
-            if (DEBUG) Log.d(TAG, "Found wake gesture input device as: " + devicePath);
-            return devicePath;
+            if (DEBUG) Log.d(TAG, "Found wake gesture input devices as: " + devicePaths);
+            return devicePaths;
         }
 
-        private void sendEventMessage(byte[] event) {
-            EventData data = new EventData(event);
-            Message msg = Message.obtain(mHandler, MSG_EVENT_RECEIVED, 0, 0, data);
+        /**
+         * Assembles frames from all complete events found in buffer and keeps partial event
+         * for the next read. Wake gesture events are collected until SYN_REPORT, every other
+         * event is skipped without decoding. After SYN_DROPPED all events are dropped up to
+         * and including the next SYN_REPORT, as the frame cannot be trusted.
+         */
+        private void sendEvents(ByteBuffer events, EventLayout layout, int source) {
+            events.flip();
+            while (events.remaining() >= layout.size) {
+                final int offset = events.position();
+                final short type = events.getShort(offset + layout.typeOffset);
+                final short code = events.getShort(offset + layout.codeOffset);
+                if (type == EV_SYN) {
+                    if (code == SYN_REPORT) {
+                        endFrame(source);
+                    } else if (code == SYN_DROPPED) {
+                        dropFrame(source);
+                    }
+                } else if (!mDropping[source] && mProfile.accepts(type, code)) {
+                    addToFrame(events, offset, layout, source);
+                }
+                events.position(offset + layout.size);
+            }
+            events.compact();
+        }
+
+        /**
+         * Dispatches frame records written by native reader, see {@link NativeInputReader}
+         */
+        private void sendNativeFrames(ByteBuffer frames) {
+            while (frames.remaining() >= NativeInputReader.RECORD_HEADER_SIZE) {
+                final int source = frames.getInt();
+                final int timeSec = frames.getInt();
+                final int timeUsec = frames.getInt();
+                final int count = frames.getInt();
+                for (int i = 0; i < count; i++) {
+                    final short type = frames.getShort();
+                    final short code = frames.getShort();
+                    final int value = frames.getInt();
+                    final WakeGesture gesture = mProfile.classify(type, code, value);
+                    if (gesture != null) {
+                        obtainFrame(source, timeSec, timeUsec).add(type, code, value, gesture);
+                    }
+                }
+                endFrame(source);
+            }
+        }
+
+        private void addToFrame(ByteBuffer events, int offset, EventLayout layout, int source) {
+            final short type = events.getShort(offset + layout.typeOffset);
+            final short code = events.getShort(offset + layout.codeOffset);
+            final int value = events.getInt(offset + layout.valueOffset);
+            final WakeGesture gesture = mProfile.classify(type, code, value);
+            if (gesture == null) return;
+
+            obtainFrame(source, events.getInt(offset + layout.timeSecOffset),
+                    events.getInt(offset + layout.timeUsecOffset)).add(type, code, value, gesture);
+        }
+
+        /**
+         * Gets frame being assembled for input device, starting new one in case there is none
+         */
+        private EventFrame obtainFrame(int source, int timeSec, int timeUsec) {
+            EventFrame frame = mFrames[source];
+            if (frame == null) {
+                frame = EventFrame.obtain();
+                frame.source = source;
+                frame.sourcePath = mDevicePaths[source];
+                frame.timeSec = timeSec;
+                frame.timeUsec = timeUsec;
+                frame.readNanos = SystemClock.elapsedRealtimeNanos();
+                frame.kernelDelayUs = GestureLatencyTracker.kernelDelayUs(timeSec, timeUsec,
+                        mMonotonic[source]);
+                mFrames[source] = frame;
+            }
+            return frame;
+        }
+
+        private void dropFrame(int source) {
+            if (DEBUG) Log.d(TAG, "SYN_DROPPED: source=" + source);
+            mDropping[source] = true;
+            if (mFrames[source] != null) {
+                mFrames[source].recycle();
+                mFrames[source] = null;
+            }
+        }
+
+        private void endFrame(int source) {
+            mDropping[source] = false;
+            final EventFrame frame = mFrames[source];
+            if (frame == null) return;
+
+            mFrames[source] = null;
+            notifyPreDispatchListener(frame);
+            if (mHandler == null) {
+                handleFrame(frame);
+                return;
+            }
+            Message msg = Message.obtain(mHandler, MSG_FRAME_RECEIVED, 0, 0, frame);
             mHandler.sendMessage(msg);
         }
 
+        private void notifyPreDispatchListener(EventFrame frame) {
+            final IWakeGesturePreDispatchListener listener = mPreDispatchListener;
+            if (listener == null) return;
+
+            final long maxAgeNanos = mMaxEventAgeNanos;
+            if (maxAgeNanos > 0 && frame.kernelDelayUs * 1000L > maxAgeNanos) return;
+
+            final long eventNanos = frame.readNanos - frame.kernelDelayUs * 1000L;
+            for (int i = 0; i < frame.count; i++) {
+                listener.onWakeGesturePreDispatch(frame.gestures[i], eventNanos);
+            }
+        }
+
         private void sendExceptionMessage(Exception e) {
             Exception newEx = new Exception("InputEventThread exception", e);
+            if (mHandler == null) {
+                notifyWakeGestureListeners(newEx);
+                return;
+            }
             Message msg = Message.obtain(mHandler, MSG_PROCESSING_ERROR, 0, 0, newEx);
             mHandler.sendMessage(msg);
         }
     }
 
-    private class EventData {
-        final int timeSec;
-        final int timeUsec;
-        final short type;
-        final short code;
-        final int value;
+    /**
+     * Passes gestures of event listener callback to legacy listener.
+     * Adapters of the same listener are equal so that the listener can be unregistered.
+     */
+    private static final class WakeGestureListenerAdapter implements IWakeGestureEventListener {
+        private final IWakeGestureListener mListener;
 
-        public EventData(byte[] data) {
-            byte[] tmp;
+        WakeGestureListenerAdapter(IWakeGestureListener listener) {
+            mListener = listener;
+        }
 
-            tmp = new byte[4];
-            System.arraycopy(data, 0, tmp, 0, tmp.length);
-            timeSec = toBuffer(tmp).getInt();
+        @Override
+        public void onWakeGestureEvent(WakeGestureEvent event) {
+            mListener.onWakeGesture(event.getGesture());
+        }
 
-            System.arraycopy(data, 4, tmp, 0, tmp.length);
-            timeUsec = getInt(tmp);
+        @Override
+        public void onProcessingException(Exception e) {
+            mListener.onProcessingException(e);
+        }
 
-            tmp = new byte[2];
-            System.arraycopy(data, 8, tmp, 0, tmp.length);
-            type = getShort(tmp);
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof WakeGestureListenerAdapter) &&
+                    ((WakeGestureListenerAdapter) o).mListener.equals(mListener);
+        }
 
-            System.arraycopy(data, 10, tmp, 0, tmp.length);
-            code = getShort(tmp);
+        @Override
+        public int hashCode() {
+            return mListener.hashCode();
+        }
+    }
+
+    /**
+     * Snapshot of reader thread health
+     */
+    public static final class ReaderHealth {
+        /** One of READER_STOPPED, READER_RUNNING, READER_BACKING_OFF or READER_FAILED */
+        public final int state;
+        /** Number of reader restarts since processor was created */
+        public final int restartCount;
+        /** Last error that stopped the reader or null */
+        public final Exception lastError;
+        /** Wall clock time of last error in milliseconds */
+        public final long lastErrorTime;
+
+        ReaderHealth(int state, int restartCount, Exception lastError, long lastErrorTime) {
+            this.state = state;
+            this.restartCount = restartCount;
+            this.lastError = lastError;
+            this.lastErrorTime = lastErrorTime;
+        }
 
-            tmp = new byte[4];
-            System.arraycopy(data, 12, tmp, 0, tmp.length);
-            value = getInt(tmp);
+        @Override
+        public String toString() {
+            final String[] states = { "stopped", "running", "backing off", "failed" };
+            return "state=" + states[state] + "; restarts=" + restartCount +
+                    (lastError == null ? "" : "; lastError=" + lastError +
+                            " at " + lastErrorTime);
         }
+    }
+
+    /**
+     * Wake gesture events reported by one input device between two SYN_REPORT events.
+     * Instances are pooled the same way as {@link Message}: obtain one with {@link #obtain()}
+     * and hand it back with {@link #recycle()} once it has been processed, so that reading
+     * events does not allocate.
+     */
+    private static final class EventFrame {
+        static final int MAX_EVENTS = 8;
+
+        private static final int MAX_POOL_SIZE = 8;
+        private static final Object sPoolSync = new Object();
+        private static EventFrame sPool;
+        private static int sPoolSize = 0;
+
+        // timestamp of first event of the frame
+        int timeSec;
+        int timeUsec;
+        int source;
+        String sourcePath;
+        long readNanos;
+        long kernelDelayUs;
+
+        int count;
+        final short[] types = new short[MAX_EVENTS];
+        final short[] codes = new short[MAX_EVENTS];
+        final int[] values = new int[MAX_EVENTS];
+        final WakeGesture[] gestures = new WakeGesture[MAX_EVENTS];
+
+        private EventFrame next;
 
-        private int getInt(byte[] array) {
-            return toBuffer(array).getInt();
+        static EventFrame obtain() {
+            synchronized (sPoolSync) {
+                if (sPool != null) {
+                    EventFrame frame = sPool;
+                    sPool = frame.next;
+                    frame.next = null;
+                    sPoolSize--;
+                    return frame;
+                }
+            }
+            return new EventFrame();
         }
 
-        private short getShort(byte[] array) {
-            return toBuffer(array).getShort();
+        void recycle() {
+            count = 0;
+            synchronized (sPoolSync) {
+                if (sPoolSize < MAX_POOL_SIZE) {
+                    next = sPool;
+                    sPool = this;
+                    sPoolSize++;
+                }
+            }
         }
 
-        private ByteBuffer toBuffer(byte[] array) {
-            ByteBuffer buf = ByteBuffer.wrap(array);
-            buf.order(ByteOrder.LITTLE_ENDIAN);
-            return buf;
+        /**
+         * Appends decoded event to the frame. Events exceeding MAX_EVENTS are ignored.
+         * @param gesture wake gesture reported by the event
+         */
+        void add(short type, short code, int value, WakeGesture gesture) {
+            if (count == MAX_EVENTS) return;
+
+            types[count] = type;
+            codes[count] = code;
+            values[count] = value;
+            gestures[count] = gesture;
+            count++;
         }
     }
 }
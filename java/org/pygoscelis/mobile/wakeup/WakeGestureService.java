@@ -15,6 +15,9 @@
 
 package org.pygoscelis.mobile.wakeup;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
@@ -33,6 +36,12 @@ public class WakeGestureService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (WakeGesture.supportGestures()) {
+            if (handler == null && WakeGesture.isWakeGesture()) {
+                // read gestures made while kernel settings are initialised, processor keeps
+                // them until handler registers
+                WakeGestureHandler.startProcessing(getApplicationContext());
+            }
+
             //Try to init kernel settings
             WakeGestureSettings.SettingsFragment.initKernelParameters(getApplicationContext());
 
@@ -45,7 +54,31 @@ public class WakeGestureService extends Service {
             }
         }
 
+        if (handler == null) {
+            WakeGestureProcessor.getInstance().stopProcessing();
+        }
         stopSelf();
         return START_NOT_STICKY;
     }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        WakeGestureProcessor wgp = WakeGestureProcessor.getInstance();
+        pw.println("Reader: " + wgp.getReaderHealth());
+        pw.println("Stale frames dropped: " + wgp.getStaleFrameCount());
+        GestureLatencyTracker.getInstance().dump(pw);
+        if (handler != null) {
+            handler.dump(pw);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        if (handler != null) {
+            handler.destroy();
+            handler = null;
+            Log.d(TAG, "Stop WakeGestureHandler");
+        }
+        super.onDestroy();
+    }
 }
@@ -19,6 +19,8 @@ package org.pygoscelis.mobile.wakeup;
 import org.pygoscelis.mobile.wakeup.preference.AppPickerPreference;
 import org.pygoscelis.mobile.wakeup.preference.SeekBarPreference;
 
+import java.util.Locale;
+
 import android.app.Activity;
 import android.app.Fragment;
 import android.content.ActivityNotFoundException;
@@ -51,6 +53,7 @@ public class WakeGestureSettings extends Activity {
     public static final String PREF_KEY_WG_SWEEP_UP = "pref_wg_sweep_up";
     public static final String PREF_KEY_WG_SWEEP_DOWN = "pref_wg_sweep_down";
     public static final String PREF_KEY_WG_DOUBLETAP = "pref_wg_doubletap";
+    public static final String PREF_KEY_WG_COMBO_PREFIX = "pref_wg_combo_";
     public static final String PREF_KEY_START_ONBOOT = "pref_start_onboot";
     public static final String PREF_KEY_DT2W = "pref_dt2w";
     public static final String PREF_KEY_S2W = "pref_s2w";
@@ -60,12 +63,26 @@ public class WakeGestureSettings extends Activity {
 
     public static final String ACTION_WAKE_GESTURE_CHANGED = "wakegestures.intent.action.WAKE_GESTURE_CHANGED";
     public static final String EXTRA_WAKE_GESTURE = "wakeGesture";
+    public static final String EXTRA_WAKE_GESTURE_COMBO = "wakeGestureCombo";
     public static final String EXTRA_INTENT_URI = "intentUri";
 
     public static final String ACTION_SETTINGS_CHANGED = "wakegestures.intent.action.SETTINGS_CHANGED";
 
     private static final int REQ_OBTAIN_SHORTCUT = 1028;
 
+    /**
+     * @return preference key of the combo made of given gestures,
+     * e.g. pref_wg_combo_doubletap_sweep_up
+     */
+    public static String getComboPrefKey(WakeGesture[] combo) {
+        StringBuilder key = new StringBuilder(PREF_KEY_WG_COMBO_PREFIX);
+        for (int i = 0; i < combo.length; i++) {
+            if (i > 0) key.append('_');
+            key.append(combo[i].name().toLowerCase(Locale.US));
+        }
+        return key.toString();
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -123,6 +140,7 @@ public class WakeGestureSettings extends Activity {
         private Preference mPrefSweepLeft;
         private Preference mPrefSweepUp;
         private Preference mPrefSweepDown;
+        private Preference[] mPrefCombos;
         private SwitchPreference mPrefKernelDt2w;
         private SwitchPreference mPrefKernelS2w;
         private SwitchPreference mPrefKernelWg;
@@ -147,6 +165,7 @@ public class WakeGestureSettings extends Activity {
             mPrefSweepLeft = findPreference(PREF_KEY_WG_SWEEP_LEFT);
             mPrefSweepUp = findPreference(PREF_KEY_WG_SWEEP_UP);
             mPrefSweepDown = findPreference(PREF_KEY_WG_SWEEP_DOWN);
+            addComboPrefs();
             mPrefKernelDt2w = (SwitchPreference) findPreference(PREF_KEY_DT2W);
             mPrefKernelS2w = (SwitchPreference) findPreference(PREF_KEY_S2W);
             mPrefKernelWg = (SwitchPreference) findPreference(PREF_KEY_WG);
@@ -165,6 +184,50 @@ public class WakeGestureSettings extends Activity {
             mPrefKernelVibStrength.setOnPreferenceChangeListener(this);
         }
 
+        /**
+         * Adds a preference for every combo configured for the device, combos are mapped
+         * to actions like single gestures
+         */
+        private void addComboPrefs() {
+            WakeGesture[][] combos;
+            try {
+                combos = GestureSequenceRecognizer.parseCombos(
+                        getResources().getStringArray(R.array.config_wakeGestureCombos));
+            } catch (IllegalArgumentException e) {
+                combos = new WakeGesture[0][];
+            }
+
+            final String separator = getString(R.string.pref_wg_combo_separator);
+            mPrefCombos = new Preference[combos.length];
+            for (int i = 0; i < combos.length; i++) {
+                StringBuilder title = new StringBuilder();
+                for (int j = 0; j < combos[i].length; j++) {
+                    if (j > 0) title.append(separator);
+                    title.append(getString(getGestureTitle(combos[i][j])));
+                }
+
+                AppPickerPreference pref = new AppPickerPreference(getActivity(), null);
+                pref.setKey(getComboPrefKey(combos[i]));
+                pref.setTitle(title);
+                pref.setDefaultSummary(getString(R.string.app_picker_none));
+                pref.setIconPickerEnabled(false);
+                pref.setSummary(R.string.app_picker_none);
+                mPrefCatGestures.addPreference(pref);
+                mPrefCombos[i] = pref;
+            }
+        }
+
+        private static int getGestureTitle(WakeGesture gesture) {
+            switch (gesture) {
+                case SWEEP_RIGHT: return R.string.pref_wg_sweep_right_title;
+                case SWEEP_LEFT: return R.string.pref_wg_sweep_left_title;
+                case SWEEP_UP: return R.string.pref_wg_sweep_up_title;
+                case SWEEP_DOWN: return R.string.pref_wg_sweep_down_title;
+                case DOUBLETAP: return R.string.pref_wg_doubletap_title;
+                default: return R.string.pref_wg_title;
+            }
+        }
+
         @Override
         public boolean onPreferenceChange(Preference preference, Object newValue) {
             boolean rc = false;
@@ -244,6 +307,9 @@ public class WakeGestureSettings extends Activity {
             mPrefSweepLeft.setEnabled(wake_gesture_state && WakeGesture.SWEEP_LEFT.isEnabled());
             mPrefSweepUp.setEnabled(wake_gesture_state && WakeGesture.SWEEP_UP.isEnabled());
             mPrefSweepDown.setEnabled(wake_gesture_state &&WakeGesture.SWEEP_DOWN.isEnabled());
+            for (Preference pref : mPrefCombos) {
+                pref.setEnabled(wake_gesture_state);
+            }
             mPrefKernelDt2w.setEnabled(WakeGesture.supportDoubleTap());
             mPrefKernelS2w.setEnabled(WakeGesture.supportSweep());
             mPrefKernelWg.setEnabled(WakeGesture.supportWakeGesture());
@@ -279,15 +345,18 @@ public class WakeGestureSettings extends Activity {
                 intent.putExtra(EXTRA_WAKE_GESTURE, "SWEEP_DOWN");
             } else if (key.equals(PREF_KEY_WG_DOUBLETAP)) {
                 intent.putExtra(EXTRA_WAKE_GESTURE, "DOUBLETAP");
+            } else if (key.startsWith(PREF_KEY_WG_COMBO_PREFIX)) {
+                intent.putExtra(EXTRA_WAKE_GESTURE_COMBO, key);
             } /*else if (key.equals(PREF_KEY_DT2W)) {
                 intent.setAction(ACTION_SETTINGS_CHANGED);
                 intent.putExtra("EXTRA_DT2W", prefs.getBoolean(key, false));
             } */
 
-            if (intent.hasExtra(EXTRA_WAKE_GESTURE) ||
-                    ACTION_SETTINGS_CHANGED.equals(intent.getAction())) {
+            final boolean gestureChanged = intent.hasExtra(EXTRA_WAKE_GESTURE) ||
+                    intent.hasExtra(EXTRA_WAKE_GESTURE_COMBO);
+            if (gestureChanged || ACTION_SETTINGS_CHANGED.equals(intent.getAction())) {
                 prefs.edit().commit();
-                if (intent.hasExtra(EXTRA_WAKE_GESTURE)) {
+                if (gestureChanged) {
                     intent.putExtra(EXTRA_INTENT_URI, prefs.getString(key, null));
                 }
                 getActivity().sendBroadcast(intent);
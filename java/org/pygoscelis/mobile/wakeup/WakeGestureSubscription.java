@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pygoscelis.mobile.wakeup;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Subscription to stream of wake gestures dispatched by WakeGestureProcessor
+ *
+ * Dispatching thread only runs operators and copies passing gestures to a bounded buffer,
+ * subscriber is called on its own Handler. A slow subscriber therefore never delays other
+ * listeners: once its buffer is full, oldest gestures are dropped and counted.
+ *
+ * Operators are applied in fixed order: distinctUntilChanged, throttle, debounce and
+ * finally window, which replaces delivery of single gestures by per window counts.
+ * Buffer slots are allocated upfront, operators do not allocate.
+ *
+ * 1) create subscription and set operators, e.g.
+ *    new WakeGestureSubscription(subscriber, handler, 16).throttle(500).distinctUntilChanged()
+ *
+ * 2) pass it to WakeGestureProcessor.subscribe(), unsubscribe() cancels it
+ */
+public final class WakeGestureSubscription {
+    private final IWakeGestureSubscriber mSubscriber;
+    private final Handler mHandler;
+
+    // bounded buffer of gestures waiting for delivery, guarded by this
+    private final WakeGestureEvent[] mBuffer;
+    private int mBufferHead;
+    private int mBufferCount;
+    private boolean mDrainScheduled;
+    private long mDroppedCount;
+    private long mFilteredCount;
+    // event passed to subscriber, owned by handler thread
+    private final WakeGestureEvent mDeliveryEvent = new WakeGestureEvent();
+
+    private boolean mDistinct;
+    private WakeGesture mLastGesture;
+    private long mThrottleNanos;
+    private long mLastPassedNanos = -1;
+    private long mDebounceMs;
+    private final WakeGestureEvent mDebouncedEvent = new WakeGestureEvent();
+    private boolean mDebouncePending;
+    private long mWindowMs;
+    private final int[] mWindowCounts = new int[WakeGesture.values().length];
+    // counts passed to subscriber, owned by handler thread
+    private final int[] mDeliveryCounts = new int[WakeGesture.values().length];
+    private long mWindowStartNanos;
+    private boolean mWindowOpen;
+
+    /**
+     * @param subscriber subscriber receiving gestures
+     * @param handler handler subscriber is called on
+     * @param bufferSize maximum number of gestures waiting for delivery
+     * @throws IllegalArgumentException in case an argument is null or buffer size is not positive
+     */
+    public WakeGestureSubscription(IWakeGestureSubscriber subscriber, Handler handler,
+            int bufferSize) {
+        if (subscriber == null || handler == null)
+            throw new IllegalArgumentException("Subscriber and handler cannot be null");
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("Buffer size must be positive");
+
+        mSubscriber = subscriber;
+        mHandler = handler;
+        mBuffer = new WakeGestureEvent[bufferSize];
+        for (int i = 0; i < bufferSize; i++) {
+            mBuffer[i] = new WakeGestureEvent();
+        }
+    }
+
+    /**
+     * Drops gestures equal to the previous one
+     */
+    public synchronized WakeGestureSubscription distinctUntilChanged() {
+        mDistinct = true;
+        return this;
+    }
+
+    /**
+     * Drops gestures following a passed gesture within given interval
+     * @param intervalMs interval in milliseconds, 0 disables the operator
+     */
+    public synchronized WakeGestureSubscription throttle(long intervalMs) {
+        if (intervalMs < 0)
+            throw new IllegalArgumentException("Interval cannot be negative");
+
+        mThrottleNanos = intervalMs * 1000000L;
+        return this;
+    }
+
+    /**
+     * Passes a gesture only once no other gesture followed it within given interval
+     * @param intervalMs interval in milliseconds, 0 disables the operator
+     */
+    public synchronized WakeGestureSubscription debounce(long intervalMs) {
+        if (intervalMs < 0)
+            throw new IllegalArgumentException("Interval cannot be negative");
+
+        mDebounceMs = intervalMs;
+        return this;
+    }
+
+    /**
+     * Delivers number of gestures per window starting with the first gesture after
+     * previous window ended, instead of single gestures
+     * @param durationMs window duration in milliseconds, 0 disables the operator
+     */
+    public synchronized WakeGestureSubscription window(long durationMs) {
+        if (durationMs < 0)
+            throw new IllegalArgumentException("Duration cannot be negative");
+
+        mWindowMs = durationMs;
+        return this;
+    }
+
+    /**
+     * @return number of gestures dropped because buffer was full
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return number of gestures dropped by operators
+     */
+    public synchronized long getFilteredCount() {
+        return mFilteredCount;
+    }
+
+    /**
+     * Drops gestures waiting for delivery, called once subscription was unregistered
+     */
+    synchronized void cancel() {
+        mHandler.removeCallbacks(mDrainRunnable);
+        mHandler.removeCallbacks(mDebounceRunnable);
+        mHandler.removeCallbacks(mWindowRunnable);
+        mBufferCount = 0;
+        mDrainScheduled = false;
+        mDebouncePending = false;
+        mWindowOpen = false;
+        for (int i = 0; i < mWindowCounts.length; i++) {
+            mWindowCounts[i] = 0;
+        }
+    }
+
+    /** Listener registered with WakeGestureProcessor on behalf of the subscription */
+    final IWakeGestureEventListener mListener = new IWakeGestureEventListener() {
+        @Override
+        public void onWakeGestureEvent(WakeGestureEvent event) {
+            synchronized (WakeGestureSubscription.this) {
+                publish(event);
+            }
+        }
+
+        @Override
+        public void onProcessingException(final Exception e) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mSubscriber.onProcessingException(e);
+                }
+            });
+        }
+    };
+
+    private void publish(WakeGestureEvent event) {
+        if (mDistinct) {
+            final boolean same = (event.gesture == mLastGesture);
+            mLastGesture = event.gesture;
+            if (same) {
+                mFilteredCount++;
+                return;
+            }
+        }
+        if (mThrottleNanos > 0) {
+            if (mLastPassedNanos >= 0 && event.eventNanos - mLastPassedNanos < mThrottleNanos) {
+                mFilteredCount++;
+                return;
+            }
+            mLastPassedNanos = event.eventNanos;
+        }
+        if (mDebounceMs > 0) {
+            if (mDebouncePending) {
+                mFilteredCount++;
+            }
+            mDebouncedEvent.copyFrom(event);
+            mDebouncePending = true;
+            mHandler.removeCallbacks(mDebounceRunnable);
+            mHandler.postDelayed(mDebounceRunnable, mDebounceMs);
+            return;
+        }
+        emit(event);
+    }
+
+    private void emit(WakeGestureEvent event) {
+        if (mWindowMs > 0) {
+            if (!mWindowOpen) {
+                mWindowOpen = true;
+                mWindowStartNanos = SystemClock.elapsedRealtimeNanos();
+                mHandler.postDelayed(mWindowRunnable, mWindowMs);
+            }
+            mWindowCounts[event.gesture.ordinal()]++;
+            return;
+        }
+
+        if (mBufferCount == mBuffer.length) {
+            mBufferHead = (mBufferHead + 1) % mBuffer.length;
+            mBufferCount--;
+            mDroppedCount++;
+        }
+        mBuffer[(mBufferHead + mBufferCount) % mBuffer.length].copyFrom(event);
+        mBufferCount++;
+        if (!mDrainScheduled) {
+            mDrainScheduled = true;
+            mHandler.post(mDrainRunnable);
+        }
+    }
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (WakeGestureSubscription.this) {
+                    if (mBufferCount == 0) {
+                        mDrainScheduled = false;
+                        return;
+                    }
+                    mDeliveryEvent.copyFrom(mBuffer[mBufferHead]);
+                    mBufferHead = (mBufferHead + 1) % mBuffer.length;
+                    mBufferCount--;
+                }
+                mSubscriber.onWakeGesture(mDeliveryEvent);
+            }
+        }
+    };
+
+    private final Runnable mDebounceRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (WakeGestureSubscription.this) {
+                if (!mDebouncePending) return;
+                mDebouncePending = false;
+                emit(mDebouncedEvent);
+            }
+        }
+    };
+
+    private final Runnable mWindowRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final long startNanos;
+            synchronized (WakeGestureSubscription.this) {
+                if (!mWindowOpen) return;
+                mWindowOpen = false;
+                startNanos = mWindowStartNanos;
+                for (int i = 0; i < mWindowCounts.length; i++) {
+                    mDeliveryCounts[i] = mWindowCounts[i];
+                    mWindowCounts[i] = 0;
+                }
+            }
+            mSubscriber.onWakeGestureWindow(mDeliveryCounts, startNanos,
+                    SystemClock.elapsedRealtimeNanos());
+        }
+    };
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pygoscelis.mobile.wakeup;
+
+import java.io.PrintWriter;
+
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Wake locks held while gesture actions run
+ *
+ * One wake lock is created per wake lock policy and shared by every action. The pool counts
+ * holds itself: the lock is acquired by the first hold and released by the last one, and its
+ * timeout is re-armed to the latest deadline of outstanding holds so that a stuck action cannot
+ * keep the device awake. Reference counted locks are not used, since their timeout drops a
+ * single reference and would leave the lock held or released early.
+ * Hold times are counted per gesture.
+ */
+class WakeLockPool {
+    private static final String TAG = "WakeLockPool";
+
+    private final WakeLock[] mWakeLocks = new WakeLock[2];
+
+    // outstanding holds and latest hold deadline indexed by policy, guarded by this
+    private final int[] mHolds = new int[2];
+    private final long[] mDeadlines = new long[2];
+
+    // hold statistics indexed by gesture ordinal, guarded by this
+    private final long[] mHoldCounts = new long[WakeGesture.values().length];
+    private final long[] mHoldTotalMs = new long[WakeGesture.values().length];
+    private final long[] mHoldMaxMs = new long[WakeGesture.values().length];
+    private final long[] mTimeoutCounts = new long[WakeGesture.values().length];
+
+    @SuppressWarnings("deprecation")
+    WakeLockPool(PowerManager pm, String tag) {
+        mWakeLocks[GestureAction.WAKE_LOCK_PARTIAL] = pm.newWakeLock(
+                PowerManager.PARTIAL_WAKE_LOCK, tag + ":partial");
+        mWakeLocks[GestureAction.WAKE_LOCK_SCREEN] = pm.newWakeLock(
+                PowerManager.SCREEN_BRIGHT_WAKE_LOCK |
+                PowerManager.ACQUIRE_CAUSES_WAKEUP | PowerManager.ON_AFTER_RELEASE,
+                tag + ":screen");
+        for (WakeLock wakeLock : mWakeLocks) {
+            wakeLock.setReferenceCounted(false);
+        }
+    }
+
+    /**
+     * Adds a hold of wake lock of given policy, released on its own once timeout elapses
+     * @return acquire time to pass to release()
+     */
+    synchronized long acquire(int policy, long timeoutMs) {
+        final long now = SystemClock.elapsedRealtime();
+        final long deadline = now + timeoutMs;
+        if (mHolds[policy] == 0 || deadline > mDeadlines[policy]) {
+            mDeadlines[policy] = deadline;
+            // lock is not reference counted, acquiring again only moves its timeout
+            mWakeLocks[policy].acquire(timeoutMs);
+        }
+        mHolds[policy]++;
+        return now;
+    }
+
+    /**
+     * Removes a hold of wake lock of given policy, lock is released with the last hold
+     * @throws IllegalStateException if no hold of given policy is outstanding
+     * @param gesture gesture the hold is counted for
+     * @param acquireTime value returned by acquire()
+     */
+    synchronized void release(WakeGesture gesture, int policy, long timeoutMs, long acquireTime) {
+        if (mHolds[policy] == 0) {
+            throw new IllegalStateException("Unbalanced wake lock release of " + gesture);
+        }
+        mHolds[policy]--;
+        if (mHolds[policy] == 0) {
+            // no-op if the timeout released it already
+            mWakeLocks[policy].release();
+        }
+
+        final long heldMs = SystemClock.elapsedRealtime() - acquireTime;
+        final boolean timedOut = heldMs >= timeoutMs;
+        final int i = gesture.ordinal();
+        mHoldCounts[i]++;
+        mHoldTotalMs[i] += Math.min(heldMs, timeoutMs);
+        if (heldMs > mHoldMaxMs[i]) mHoldMaxMs[i] = heldMs;
+        if (timedOut) {
+            mTimeoutCounts[i]++;
+            Log.w(TAG, "Action of " + gesture + " outlived wake lock timeout: " + heldMs + "ms");
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Wake lock holds: partial=" + mHolds[GestureAction.WAKE_LOCK_PARTIAL] +
+                " screen=" + mHolds[GestureAction.WAKE_LOCK_SCREEN]);
+        for (WakeGesture gesture : WakeGesture.values()) {
+            final int i = gesture.ordinal();
+            if (mHoldCounts[i] == 0) continue;
+            pw.println("  " + gesture + ": n=" + mHoldCounts[i] +
+                    " total=" + mHoldTotalMs[i] + "ms max=" + mHoldMaxMs[i] +
+                    "ms timeouts=" + mTimeoutCounts[i]);
+        }
+    }
+}
@@ -314,6 +314,10 @@ public class AppPickerPreference extends DialogPreference
         mDefaultSummaryText = summary;
     }
 
+    public void setIconPickerEnabled(boolean enabled) {
+        mIconPickerEnabled = enabled;
+    }
+
     private void setData() {
         mAsyncTask = new AsyncTask<Void,Void,ArrayList<IIconListAdapterItem>>() {
             @Override
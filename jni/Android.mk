@@ -0,0 +1,16 @@
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_SRC_FILES := org_pygoscelis_mobile_wakeup_NativeInputReader.cpp
+
+LOCAL_SHARED_LIBRARIES := liblog
+
+LOCAL_CFLAGS := -Wall -Werror
+
+LOCAL_MODULE := libwakeup_jni
+
+include $(BUILD_SHARED_LIBRARY)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
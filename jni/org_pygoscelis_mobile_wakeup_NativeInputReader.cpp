@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Native reader of wake gesture input devices
+ *
+ * All devices and an eventfd used to wake the reader up are waited for with a single epoll
+ * instance. Events are read in batches, filtered and assembled into frames here, so Java
+ * only sees complete wake gesture frames written to a direct buffer it allocated once.
+ * Devices are asked to stamp events with CLOCK_MONOTONIC, so that event age is not affected
+ * by wall clock changes.
+ *
+ * Reading is implemented apart from JNI and does not depend on Android libraries other than
+ * liblog, so that tests/ exercises it on a Linux host against FIFOs standing in for input
+ * devices.
+ */
+
+#define LOG_TAG "NativeInputReader"
+
+#include <errno.h>
+#include <fcntl.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <linux/input.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
+#include <sys/ioctl.h>
+#include <time.h>
+
+#include <jni.h>
+
+#ifdef __ANDROID__
+#include <android/log.h>
+#define LOGW(...) __android_log_print(ANDROID_LOG_WARN, LOG_TAG, __VA_ARGS__)
+#else
+#define LOGW(...) do { fprintf(stderr, LOG_TAG ": " __VA_ARGS__); fputc('\n', stderr); } while (0)
+#endif
+
+#ifndef input_event_sec
+#define input_event_sec time.tv_sec
+#define input_event_usec time.tv_usec
+#endif
+
+#define NELEM(x) ((int) (sizeof(x) / sizeof((x)[0])))
+
+// must match NativeInputReader.java
+#define MAX_FRAME_EVENTS 8
+#define RECORD_HEADER_SIZE 16
+#define RECORD_EVENT_SIZE 8
+#define MAX_RECORD_SIZE_PER_EVENT 16
+
+#define READ_BATCH_SIZE 64
+
+namespace {
+
+struct Frame {
+    int32_t timeSec;
+    int32_t timeUsec;
+    int32_t count;
+    bool dropping;
+    uint16_t types[MAX_FRAME_EVENTS];
+    uint16_t codes[MAX_FRAME_EVENTS];
+    int32_t values[MAX_FRAME_EVENTS];
+};
+
+struct Device {
+    int fd;
+    // events are stamped with CLOCK_MONOTONIC instead of wall clock
+    bool monotonic;
+    Frame frame;
+    // partial event left by previous read, only possible with non-evdev files
+    uint8_t pending[sizeof(struct input_event)];
+    size_t pendingSize;
+};
+
+struct Reader {
+    int epollFd;
+    int wakeFd;
+    int deviceCount;
+    Device* devices;
+    // accepted (type << 16 | code) pairs
+    int filterCount;
+    uint32_t* filter;
+};
+
+void throwIOException(JNIEnv* env, const char* message, int error) {
+    char buf[256];
+    snprintf(buf, sizeof(buf), "%s: %s", message, strerror(error));
+    jclass clazz = env->FindClass("java/io/IOException");
+    if (clazz != NULL) {
+        env->ThrowNew(clazz, buf);
+    }
+}
+
+/*
+ * Asks kernel to stamp events of device with CLOCK_MONOTONIC
+ * @return true on success, events keep wall clock stamps otherwise
+ */
+bool setMonotonicClock(int fd) {
+#ifdef EVIOCSCLOCKID
+    int clockId = CLOCK_MONOTONIC;
+    return ioctl(fd, EVIOCSCLOCKID, &clockId) == 0;
+#else
+    (void) fd;
+    return false;
+#endif
+}
+
+void closeReader(Reader* reader) {
+    for (int i = 0; i < reader->deviceCount && reader->devices != NULL; i++) {
+        if (reader->devices[i].fd >= 0) {
+            // closing the device also releases grab
+            close(reader->devices[i].fd);
+        }
+    }
+    if (reader->wakeFd >= 0) close(reader->wakeFd);
+    if (reader->epollFd >= 0) close(reader->epollFd);
+    free(reader->devices);
+    free(reader->filter);
+    free(reader);
+}
+
+bool accepts(const Reader* reader, uint16_t type, uint16_t code) {
+    const uint32_t key = (uint32_t) type << 16 | code;
+    for (int i = 0; i < reader->filterCount; i++) {
+        if (reader->filter[i] == key) return true;
+    }
+    return false;
+}
+
+/*
+ * Writes frame as record: int source, int timeSec, int timeUsec, int count followed by
+ * count times short type, short code, int value, all in native byte order.
+ */
+size_t writeFrame(const Frame& frame, int source, uint8_t* out) {
+    int32_t header[4] = { source, frame.timeSec, frame.timeUsec, frame.count };
+    memcpy(out, header, sizeof(header));
+    uint8_t* p = out + RECORD_HEADER_SIZE;
+    for (int i = 0; i < frame.count; i++) {
+        memcpy(p, &frame.types[i], 2);
+        memcpy(p + 2, &frame.codes[i], 2);
+        memcpy(p + 4, &frame.values[i], 4);
+        p += RECORD_EVENT_SIZE;
+    }
+    return p - out;
+}
+
+/*
+ * Adds event to frame of device and writes the frame to out once it is complete
+ * @return number of bytes written to out
+ */
+size_t processEvent(const Reader* reader, Device* device, int source,
+        const struct input_event& event, uint8_t* out) {
+    Frame& frame = device->frame;
+    if (event.type == EV_SYN) {
+        size_t written = 0;
+        if (event.code == SYN_REPORT) {
+            if (frame.count > 0 && !frame.dropping) {
+                written = writeFrame(frame, source, out);
+            }
+            frame.dropping = false;
+            frame.count = 0;
+        } else if (event.code == SYN_DROPPED) {
+            frame.dropping = true;
+            frame.count = 0;
+        }
+        return written;
+    }
+    if (frame.dropping || frame.count == MAX_FRAME_EVENTS ||
+            !accepts(reader, event.type, event.code)) {
+        return 0;
+    }
+    if (frame.count == 0) {
+        frame.timeSec = (int32_t) event.input_event_sec;
+        frame.timeUsec = (int32_t) event.input_event_usec;
+    }
+    frame.types[frame.count] = event.type;
+    frame.codes[frame.count] = event.code;
+    frame.values[frame.count] = event.value;
+    frame.count++;
+    return 0;
+}
+
+/*
+ * Reads pending events of device and writes completed frames to out
+ * @return number of bytes written to out or -errno, -EPIPE when device was closed
+ */
+ssize_t readDevice(const Reader* reader, int source, uint8_t* out) {
+    Device* device = &reader->devices[source];
+    struct input_event events[READ_BATCH_SIZE];
+    uint8_t* buf = (uint8_t*) events;
+
+    memcpy(buf, device->pending, device->pendingSize);
+    ssize_t size;
+    do {
+        size = read(device->fd, buf + device->pendingSize,
+                sizeof(events) - device->pendingSize);
+    } while (size < 0 && errno == EINTR);
+    if (size < 0) return errno == EAGAIN ? 0 : -errno;
+    if (size == 0) return -EPIPE;
+
+    size += device->pendingSize;
+    const int count = size / sizeof(struct input_event);
+    device->pendingSize = size % sizeof(struct input_event);
+    memcpy(device->pending, buf + count * sizeof(struct input_event), device->pendingSize);
+
+    size_t written = 0;
+    for (int i = 0; i < count; i++) {
+        written += processEvent(reader, device, source, events[i], out + written);
+    }
+    return written;
+}
+
+/*
+ * Opens input devices and creates reader waiting for all of them
+ * @param error set to errno in case of failure
+ * @param failedDevice set to index of device that could not be opened, -1 otherwise
+ * @return reader or NULL in case of failure
+ */
+Reader* openReader(const char* const* paths, int deviceCount, const uint32_t* filter,
+        int filterCount, bool grab, int* error, int* failedDevice) {
+    *failedDevice = -1;
+    Reader* reader = (Reader*) calloc(1, sizeof(Reader));
+    if (reader == NULL) {
+        *error = ENOMEM;
+        return NULL;
+    }
+    reader->wakeFd = -1;
+    reader->deviceCount = deviceCount;
+    reader->devices = (Device*) calloc(deviceCount, sizeof(Device));
+    reader->filterCount = filterCount;
+    reader->filter = (uint32_t*) calloc(filterCount + 1, sizeof(uint32_t));
+    reader->epollFd = epoll_create1(EPOLL_CLOEXEC);
+    for (int i = 0; i < deviceCount && reader->devices != NULL; i++) {
+        reader->devices[i].fd = -1;
+    }
+    if (reader->devices == NULL || reader->filter == NULL) {
+        closeReader(reader);
+        *error = ENOMEM;
+        return NULL;
+    }
+    if (reader->epollFd < 0) {
+        *error = errno;
+        closeReader(reader);
+        return NULL;
+    }
+    memcpy(reader->filter, filter, filterCount * sizeof(uint32_t));
+
+    reader->wakeFd = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK);
+    struct epoll_event item;
+    memset(&item, 0, sizeof(item));
+    item.events = EPOLLIN;
+    item.data.u32 = deviceCount;
+    if (reader->wakeFd < 0 || epoll_ctl(reader->epollFd, EPOLL_CTL_ADD, reader->wakeFd, &item)) {
+        *error = errno;
+        closeReader(reader);
+        return NULL;
+    }
+
+    for (int i = 0; i < deviceCount; i++) {
+        Device* device = &reader->devices[i];
+        device->fd = open(paths[i], O_RDONLY | O_CLOEXEC | O_NONBLOCK);
+        if (device->fd >= 0) {
+            device->monotonic = setMonotonicClock(device->fd);
+            if (grab && ioctl(device->fd, EVIOCGRAB, 1)) {
+                // not fatal, gestures are still read, just not exclusively
+                LOGW("Could not grab %s: %s", paths[i], strerror(errno));
+            }
+            item.data.u32 = i;
+        }
+        if (device->fd < 0 || epoll_ctl(reader->epollFd, EPOLL_CTL_ADD, device->fd, &item)) {
+            *error = errno;
+            *failedDevice = i;
+            closeReader(reader);
+            return NULL;
+        }
+    }
+    return reader;
+}
+
+/*
+ * Blocks until frames are read or reader is woken up
+ * @param out buffer receiving frame records, at least READ_BATCH_SIZE *
+ * MAX_RECORD_SIZE_PER_EVENT bytes
+ * @return number of bytes written to out, 0 when woken up or -errno, -EPIPE when a device
+ * was closed
+ */
+ssize_t readFrames(Reader* reader, uint8_t* out, size_t capacity) {
+    // a single read never produces more than this, keeps every read complete
+    const size_t maxReadSize = READ_BATCH_SIZE * MAX_RECORD_SIZE_PER_EVENT;
+    if (capacity < maxReadSize) return -EINVAL;
+
+    struct epoll_event items[8];
+    size_t written = 0;
+    // events read so far may not have completed any frame yet
+    while (written == 0) {
+        int count;
+        do {
+            count = epoll_wait(reader->epollFd, items, NELEM(items), -1);
+        } while (count < 0 && errno == EINTR);
+        if (count < 0) return -errno;
+
+        for (int i = 0; i < count; i++) {
+            const int source = items[i].data.u32;
+            if (source == reader->deviceCount) {
+                // woken up to stop, leave the event set so that later reads return at once
+                return 0;
+            }
+            if (capacity - written < maxReadSize) {
+                // epoll is level triggered, device is reported again next time
+                continue;
+            }
+            ssize_t size = readDevice(reader, source, out + written);
+            if (size < 0) return size;
+            written += size;
+        }
+    }
+    return written;
+}
+
+void wakeUpReader(Reader* reader) {
+    uint64_t value = 1;
+    if (write(reader->wakeFd, &value, sizeof(value)) < 0) {
+        LOGW("Could not wake up reader: %s", strerror(errno));
+    }
+}
+
+jlong NativeInputReader_nativeOpen(JNIEnv* env, jclass, jobjectArray paths, jintArray filter,
+        jboolean grab) {
+    const int deviceCount = env->GetArrayLength(paths);
+    const int filterCount = env->GetArrayLength(filter);
+    jstring* pathStrings = (jstring*) calloc(deviceCount + 1, sizeof(jstring));
+    const char** pathChars = (const char**) calloc(deviceCount + 1, sizeof(char*));
+    uint32_t* filterValues = (uint32_t*) calloc(filterCount + 1, sizeof(uint32_t));
+    Reader* reader = NULL;
+    int error = ENOMEM;
+    int failedDevice = -1;
+    if (pathStrings != NULL && pathChars != NULL && filterValues != NULL) {
+        env->GetIntArrayRegion(filter, 0, filterCount, (jint*) filterValues);
+        bool ok = true;
+        for (int i = 0; i < deviceCount && ok; i++) {
+            pathStrings[i] = (jstring) env->GetObjectArrayElement(paths, i);
+            pathChars[i] = env->GetStringUTFChars(pathStrings[i], NULL);
+            ok = (pathChars[i] != NULL);
+        }
+        if (ok) {
+            reader = openReader(pathChars, deviceCount, filterValues, filterCount, grab,
+                    &error, &failedDevice);
+        }
+    }
+
+    if (reader == NULL && !env->ExceptionCheck()) {
+        char message[256];
+        if (failedDevice >= 0) {
+            snprintf(message, sizeof(message), "Could not open input device %s",
+                    pathChars[failedDevice]);
+        } else {
+            snprintf(message, sizeof(message), "Could not create reader");
+        }
+        throwIOException(env, message, error);
+    }
+    for (int i = 0; pathChars != NULL && i < deviceCount; i++) {
+        if (pathChars[i] != NULL) {
+            env->ReleaseStringUTFChars(pathStrings[i], pathChars[i]);
+        }
+        if (pathStrings[i] != NULL) {
+            env->DeleteLocalRef(pathStrings[i]);
+        }
+    }
+    free(pathStrings);
+    free(pathChars);
+    free(filterValues);
+    return (jlong) (intptr_t) reader;
+}
+
+jint NativeInputReader_nativeRead(JNIEnv* env, jclass, jlong handle, jobject buffer) {
+    Reader* reader = (Reader*) (intptr_t) handle;
+    uint8_t* out = (uint8_t*) env->GetDirectBufferAddress(buffer);
+    const jlong capacity = env->GetDirectBufferCapacity(buffer);
+    if (out == NULL || capacity < 0) {
+        throwIOException(env, "Frame buffer is not direct", EINVAL);
+        return -1;
+    }
+
+    const ssize_t size = readFrames(reader, out, (size_t) capacity);
+    if (size < 0) {
+        throwIOException(env, "Could not read input devices", (int) -size);
+        return -1;
+    }
+    return (jint) size;
+}
+
+void NativeInputReader_nativeWakeUp(JNIEnv*, jclass, jlong handle) {
+    wakeUpReader((Reader*) (intptr_t) handle);
+}
+
+jboolean NativeInputReader_nativeUsesMonotonicClock(JNIEnv*, jclass, jlong handle, jint source) {
+    const Reader* reader = (const Reader*) (intptr_t) handle;
+    return reader->devices[source].monotonic ? JNI_TRUE : JNI_FALSE;
+}
+
+jboolean NativeInputReader_nativeSetMonotonicClock(JNIEnv* env, jclass, jobject fileDescriptor) {
+    jclass clazz = env->GetObjectClass(fileDescriptor);
+    // libcore names the field descriptor, OpenJDK names it fd
+    jfieldID field = env->GetFieldID(clazz, "descriptor", "I");
+    if (field == NULL) {
+        env->ExceptionClear();
+        field = env->GetFieldID(clazz, "fd", "I");
+        if (field == NULL) {
+            env->ExceptionClear();
+            return JNI_FALSE;
+        }
+    }
+    return setMonotonicClock(env->GetIntField(fileDescriptor, field)) ? JNI_TRUE : JNI_FALSE;
+}
+
+jint NativeInputReader_nativeGetInputEventSize(JNIEnv*, jclass) {
+    // size of events kernel hands out to this process, which depends on its ABI
+    return sizeof(struct input_event);
+}
+
+void NativeInputReader_nativeClose(JNIEnv*, jclass, jlong handle) {
+    closeReader((Reader*) (intptr_t) handle);
+}
+
+// host jni.h declares method names and signatures as char*
+const JNINativeMethod gMethods[] = {
+    { (char*) "nativeOpen", (char*) "([Ljava/lang/String;[IZ)J", (void*) NativeInputReader_nativeOpen },
+    { (char*) "nativeRead", (char*) "(JLjava/nio/ByteBuffer;)I", (void*) NativeInputReader_nativeRead },
+    { (char*) "nativeWakeUp", (char*) "(J)V", (void*) NativeInputReader_nativeWakeUp },
+    { (char*) "nativeUsesMonotonicClock", (char*) "(JI)Z",
+            (void*) NativeInputReader_nativeUsesMonotonicClock },
+    { (char*) "nativeSetMonotonicClock", (char*) "(Ljava/io/FileDescriptor;)Z",
+            (void*) NativeInputReader_nativeSetMonotonicClock },
+    { (char*) "nativeGetInputEventSize", (char*) "()I",
+            (void*) NativeInputReader_nativeGetInputEventSize },
+    { (char*) "nativeClose", (char*) "(J)V", (void*) NativeInputReader_nativeClose },
+};
+
+} // namespace
+
+jint JNI_OnLoad(JavaVM* vm, void*) {
+    JNIEnv* env = NULL;
+    if (vm->GetEnv((void**) &env, JNI_VERSION_1_6) != JNI_OK) return -1;
+
+    jclass clazz = env->FindClass("org/pygoscelis/mobile/wakeup/NativeInputReader");
+    if (clazz == NULL) return -1;
+    if (env->RegisterNatives(clazz, gMethods, NELEM(gMethods)) < 0) return -1;
+
+    return JNI_VERSION_1_6;
+}
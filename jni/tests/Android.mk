@@ -0,0 +1,14 @@
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_SRC_FILES := NativeInputReader_test.cpp
+
+LOCAL_C_INCLUDES := $(JNI_H_INCLUDE)
+
+LOCAL_CFLAGS := -Wall -Werror
+
+LOCAL_MODULE := wakeup_jni_test
+
+include $(BUILD_HOST_EXECUTABLE)
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Host test of native wake gesture reader
+ *
+ * FIFOs stand in for input devices, events are written to them the way evdev reports them.
+ * Built by tests/Android.mk, or directly on a Linux host with a JDK:
+ *   g++ -Wall -Werror -I$JAVA_HOME/include -I$JAVA_HOME/include/linux \
+ *       -o NativeInputReader_test NativeInputReader_test.cpp
+ */
+
+#include "../org_pygoscelis_mobile_wakeup_NativeInputReader.cpp"
+
+#include <stdio.h>
+#include <sys/stat.h>
+
+namespace {
+
+int gFailures = 0;
+
+#define CHECK(condition) do { \
+    if (!(condition)) { \
+        fprintf(stderr, "%s:%d: %s failed\n", __FILE__, __LINE__, #condition); \
+        gFailures++; \
+    } \
+} while (0)
+
+const uint32_t FILTER[] = { (uint32_t) EV_KEY << 16 | KEY_POWER, (uint32_t) EV_ABS << 16 | ABS_X };
+
+const size_t BUFFER_SIZE = READ_BATCH_SIZE * MAX_RECORD_SIZE_PER_EVENT * 2;
+
+/*
+ * FIFOs standing in for devices, writers are opened after the reader so that opening
+ * does not block
+ */
+struct Fixture {
+    char dir[64];
+    char paths[2][96];
+    const char* pathPointers[2];
+    int writers[2];
+    int deviceCount;
+    Reader* reader;
+    uint8_t buffer[BUFFER_SIZE];
+
+    explicit Fixture(int count) : deviceCount(count), reader(NULL) {
+        snprintf(dir, sizeof(dir), "/tmp/wakeup_test_XXXXXX");
+        if (mkdtemp(dir) == NULL) abort();
+        for (int i = 0; i < deviceCount; i++) {
+            snprintf(paths[i], sizeof(paths[i]), "%s/event%d", dir, i);
+            if (mkfifo(paths[i], 0600)) abort();
+            pathPointers[i] = paths[i];
+            writers[i] = -1;
+        }
+        int error = 0;
+        int failedDevice = 0;
+        reader = openReader(pathPointers, deviceCount, FILTER, NELEM(FILTER), false, &error,
+                &failedDevice);
+        if (reader == NULL) abort();
+        for (int i = 0; i < deviceCount; i++) {
+            writers[i] = open(paths[i], O_WRONLY | O_CLOEXEC);
+            if (writers[i] < 0) abort();
+        }
+    }
+
+    ~Fixture() {
+        for (int i = 0; i < deviceCount; i++) {
+            if (writers[i] >= 0) close(writers[i]);
+            unlink(paths[i]);
+        }
+        if (reader != NULL) closeReader(reader);
+        rmdir(dir);
+    }
+
+    void write(int device, const void* data, size_t size) {
+        if (::write(writers[device], data, size) != (ssize_t) size) abort();
+    }
+
+    void send(int device, uint16_t type, uint16_t code, int32_t value, int sec = 1) {
+        struct input_event event;
+        memset(&event, 0, sizeof(event));
+        event.input_event_sec = sec;
+        event.input_event_usec = 500;
+        event.type = type;
+        event.code = code;
+        event.value = value;
+        write(device, &event, sizeof(event));
+    }
+
+    void sync(int device, uint16_t code = SYN_REPORT) {
+        send(device, EV_SYN, code, 0);
+    }
+
+    ssize_t read() {
+        return readFrames(reader, buffer, sizeof(buffer));
+    }
+
+    int32_t header(size_t offset, int field) {
+        int32_t value;
+        memcpy(&value, buffer + offset + field * 4, 4);
+        return value;
+    }
+};
+
+void testFrameAssemblyAndFilter() {
+    Fixture fixture(1);
+    fixture.send(0, EV_KEY, KEY_POWER, 1, 7);
+    // not in filter
+    fixture.send(0, EV_KEY, KEY_VOLUMEUP, 1);
+    fixture.send(0, EV_ABS, ABS_X, 42);
+    fixture.sync(0);
+
+    CHECK(fixture.read() == RECORD_HEADER_SIZE + 2 * RECORD_EVENT_SIZE);
+    CHECK(fixture.header(0, 0) == 0);
+    CHECK(fixture.header(0, 1) == 7);
+    CHECK(fixture.header(0, 2) == 500);
+    CHECK(fixture.header(0, 3) == 2);
+    uint16_t type, code;
+    int32_t value;
+    const uint8_t* second = fixture.buffer + RECORD_HEADER_SIZE + RECORD_EVENT_SIZE;
+    memcpy(&type, second, 2);
+    memcpy(&code, second + 2, 2);
+    memcpy(&value, second + 4, 4);
+    CHECK(type == EV_ABS);
+    CHECK(code == ABS_X);
+    CHECK(value == 42);
+}
+
+void testPartialEvent() {
+    Fixture fixture(1);
+    struct input_event events[2];
+    memset(events, 0, sizeof(events));
+    events[0].type = EV_KEY;
+    events[0].code = KEY_POWER;
+    events[0].value = 1;
+    events[1].type = EV_SYN;
+    events[1].code = SYN_REPORT;
+    const uint8_t* data = (const uint8_t*) events;
+    const size_t split = sizeof(struct input_event) + 5;
+
+    fixture.write(0, data, split);
+    CHECK(readDevice(fixture.reader, 0, fixture.buffer) == 0);
+    fixture.write(0, data + split, sizeof(events) - split);
+    CHECK(fixture.read() == RECORD_HEADER_SIZE + RECORD_EVENT_SIZE);
+    CHECK(fixture.header(0, 3) == 1);
+}
+
+void testDroppedFrame() {
+    Fixture fixture(1);
+    fixture.send(0, EV_KEY, KEY_POWER, 1);
+    fixture.sync(0, SYN_DROPPED);
+    // rest of the dropped frame up to the next report is discarded as well
+    fixture.send(0, EV_ABS, ABS_X, 1);
+    fixture.sync(0);
+    fixture.send(0, EV_ABS, ABS_X, 2);
+    fixture.sync(0);
+
+    CHECK(fixture.read() == RECORD_HEADER_SIZE + RECORD_EVENT_SIZE);
+    int32_t value;
+    memcpy(&value, fixture.buffer + RECORD_HEADER_SIZE + 4, 4);
+    CHECK(value == 2);
+}
+
+void testSource() {
+    Fixture fixture(2);
+    fixture.send(1, EV_KEY, KEY_POWER, 1);
+    fixture.sync(1);
+
+    CHECK(fixture.read() == RECORD_HEADER_SIZE + RECORD_EVENT_SIZE);
+    CHECK(fixture.header(0, 0) == 1);
+}
+
+void testWakeUp() {
+    Fixture fixture(1);
+    wakeUpReader(fixture.reader);
+    CHECK(fixture.read() == 0);
+    // stays woken up so that a reader racing with stop does not block
+    CHECK(fixture.read() == 0);
+}
+
+void testClosedDevice() {
+    Fixture fixture(1);
+    close(fixture.writers[0]);
+    fixture.writers[0] = -1;
+    CHECK(fixture.read() == -EPIPE);
+}
+
+void testBufferTooSmall() {
+    Fixture fixture(1);
+    CHECK(readFrames(fixture.reader, fixture.buffer, 16) == -EINVAL);
+}
+
+void testOpenFailure() {
+    const char* path = "/nonexistent/event0";
+    int error = 0;
+    int failedDevice = -1;
+    CHECK(openReader(&path, 1, FILTER, NELEM(FILTER), true, &error, &failedDevice) == NULL);
+    CHECK(error == ENOENT);
+    CHECK(failedDevice == 0);
+}
+
+void testMonotonicClockUnsupported() {
+    Fixture fixture(1);
+    // not an evdev device, keeps wall clock stamps
+    CHECK(!fixture.reader->devices[0].monotonic);
+}
+
+} // namespace
+
+int main() {
+    testFrameAssemblyAndFilter();
+    testPartialEvent();
+    testDroppedFrame();
+    testSource();
+    testWakeUp();
+    testClosedDevice();
+    testBufferTooSmall();
+    testOpenFailure();
+    testMonotonicClockUnsupported();
+    if (gFailures > 0) {
+        fprintf(stderr, "%d check(s) failed\n", gFailures);
+        return 1;
+    }
+    printf("All tests passed\n");
+    return 0;
+}
@@ -0,0 +1,11 @@
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src) \
+    ../java/org/pygoscelis/mobile/wakeup/EventLayout.java
+
+LOCAL_MODULE := WakeUpBenchmark
+
+include $(BUILD_HOST_JAVA_LIBRARY)
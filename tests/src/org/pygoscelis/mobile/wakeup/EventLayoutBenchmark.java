@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 Michael Serpieri (mickybart@xda)
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.pygoscelis.mobile.wakeup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Host microbenchmark of input_event decoding
+ *
+ * Decodes a direct buffer of events with both EventLayout offsets the way the reader thread
+ * does, and with the fixed 16 byte offsets of the previous decoder as baseline.
+ * Built by tests/Android.mk, or directly with a JDK from the repository root:
+ *   javac -d /tmp/bench java/org/pygoscelis/mobile/wakeup/EventLayout.java \
+ *       tests/src/org/pygoscelis/mobile/wakeup/EventLayoutBenchmark.java
+ *   java -cp /tmp/bench org.pygoscelis.mobile.wakeup.EventLayoutBenchmark
+ */
+public class EventLayoutBenchmark {
+    private static final int EVENT_COUNT = 64 * 1024;
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int ROUNDS = 1000;
+
+    private static final int EV_SYN = 0;
+    private static final int EV_ABS = 3;
+
+    // sink of decoded fields, keeps JIT from removing the decoding
+    private static long sChecksum;
+
+    public static void main(String[] args) {
+        final ByteBuffer events32 = fill(EventLayout.LAYOUT_32);
+        final ByteBuffer events64 = fill(EventLayout.LAYOUT_64);
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            decodeFixed(events32);
+            decode(events32, EventLayout.LAYOUT_32);
+            decode(events64, EventLayout.LAYOUT_64);
+        }
+
+        final double fixed = measureFixed(events32);
+        final double layout32 = measure(events32, EventLayout.LAYOUT_32);
+        final double layout64 = measure(events64, EventLayout.LAYOUT_64);
+        System.out.printf("fixed 16 byte: %.2f ns/event%n", fixed);
+        System.out.printf("layout 32:     %.2f ns/event%n", layout32);
+        System.out.printf("layout 64:     %.2f ns/event%n", layout64);
+        System.out.println("checksum: " + sChecksum);
+    }
+
+    /**
+     * Writes frames of one ABS_X event followed by SYN_REPORT, as a touchscreen reports them
+     */
+    private static ByteBuffer fill(EventLayout layout) {
+        final ByteBuffer events = ByteBuffer.allocateDirect(EVENT_COUNT * layout.size)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            final int offset = i * layout.size;
+            final boolean syn = (i & 1) != 0;
+            events.putInt(offset + layout.timeSecOffset, 1000 + i / 1000);
+            events.putInt(offset + layout.timeUsecOffset, i % 1000 * 1000);
+            events.putShort(offset + layout.typeOffset, (short) (syn ? EV_SYN : EV_ABS));
+            events.putShort(offset + layout.codeOffset, (short) 0);
+            events.putInt(offset + layout.valueOffset, syn ? 0 : i);
+        }
+        return events;
+    }
+
+    private static double measure(ByteBuffer events, EventLayout layout) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            decode(events, layout);
+        }
+        return (double) (System.nanoTime() - start) / ROUNDS / EVENT_COUNT;
+    }
+
+    private static double measureFixed(ByteBuffer events) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            decodeFixed(events);
+        }
+        return (double) (System.nanoTime() - start) / ROUNDS / EVENT_COUNT;
+    }
+
+    private static void decode(ByteBuffer events, EventLayout layout) {
+        long checksum = 0;
+        final int limit = events.capacity();
+        for (int offset = 0; offset + layout.size <= limit; offset += layout.size) {
+            final short type = events.getShort(offset + layout.typeOffset);
+            final short code = events.getShort(offset + layout.codeOffset);
+            if (type == EV_SYN) {
+                checksum += code;
+                continue;
+            }
+            checksum += events.getInt(offset + layout.valueOffset) +
+                    events.getInt(offset + layout.timeSecOffset) +
+                    events.getInt(offset + layout.timeUsecOffset);
+        }
+        sChecksum += checksum;
+    }
+
+    private static void decodeFixed(ByteBuffer events) {
+        long checksum = 0;
+        final int limit = events.capacity();
+        for (int offset = 0; offset + 16 <= limit; offset += 16) {
+            final short type = events.getShort(offset + 8);
+            final short code = events.getShort(offset + 10);
+            if (type == EV_SYN) {
+                checksum += code;
+                continue;
+            }
+            checksum += events.getInt(offset + 12) + events.getInt(offset) +
+                    events.getInt(offset + 4);
+        }
+        sChecksum += checksum;
+    }
+}